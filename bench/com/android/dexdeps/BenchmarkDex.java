@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Loads the input of a JMH benchmark into the heap, so that what is
+ * measured is parsing rather than I/O.
+ */
+public final class BenchmarkDex {
+    private BenchmarkDex() {
+    }
+
+    /**
+     * Returns the bytes of a .dex file, or of the first classes*.dex in
+     * an .apk/.jar.
+     */
+    public static ByteBuffer read(String fileName) throws IOException {
+        if (fileName == null || fileName.length() == 0) {
+            throw new IllegalArgumentException(
+                    "no input; run with -p dex=file.dex[,other.dex...]");
+        }
+
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(fileName);
+        } catch (ZipException ze) {
+            return ByteBuffer.wrap(readAll(new FileInputStream(fileName)));
+        }
+
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (entry.getName().matches("classes.*\\.dex")) {
+                    return ByteBuffer.wrap(readAll(zipFile.getInputStream(entry)));
+                }
+            }
+            throw new IOException(fileName + " has no classes*.dex");
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    /**
+     * Returns a loaded DexData over the bytes.
+     */
+    public static DexData load(ByteBuffer dex) throws IOException {
+        DexData dexData = new DexData(dex.duplicate());
+        dexData.load();
+        return dexData;
+    }
+
+    private static byte[] readAll(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            byte copyBuf[] = new byte[32768];
+            int actual;
+            while ((actual = in.read(copyBuf)) != -1) {
+                bytes.write(copyBuf, 0, actual);
+            }
+            return bytes.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
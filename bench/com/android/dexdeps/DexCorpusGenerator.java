@@ -0,0 +1,963 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.zip.Adler32;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Writes synthetic DEX files, and APKs/JARs of them, for scale and
+ * performance testing without real apps.
+ *
+ * The files are structurally valid: sorted id tables, type lists,
+ * class_data_items for every defined class (its methods are native, so
+ * there is no code), a map_list, and a real checksum and signature.
+ * Next to each file goes name.expected, the FLAT table and totals that
+ * counting the file should print (everything after "Processing ..."),
+ * and name.class-data.expected, the same with --class-data.
+ *
+ * Usage: DexCorpusGenerator [options] <out-dir>
+ *   With no options, writes the standard corpus (see STANDARD).
+ *   --name=N               file name without extension (default "custom")
+ *   --format=dex|apk|jar   (default dex)
+ *   --dexes=N              dex files in an apk/jar (default 1)
+ *   --stored               store apk/jar entries uncompressed
+ *   --packages=N           defined packages per dex
+ *   --depth=N              segments below the common prefix per package
+ *   --classes=N            classes per package
+ *   --fields=N, --methods=N  average fields/methods per class
+ *   --protos=N             distinct prototypes to draw methods from
+ *   --external-classes=N   referenced framework classes
+ *   --external-refs=N      method refs to them (and a quarter as many fields)
+ *   --default-classes=N    classes in the default package
+ *   --strings=N            extra unreferenced strings
+ *   --big-endian, --magic=035|036, --seed=N
+ */
+public class DexCorpusGenerator {
+    private static final int HEADER_SIZE = 0x70;
+    private static final int NO_INDEX = 0xffffffff;
+    private static final int ID_LIMIT = 65536;
+
+    private static final int ACC_PUBLIC = 0x1;
+    private static final int ACC_PRIVATE = 0x2;
+    private static final int ACC_STATIC = 0x8;
+    private static final int ACC_NATIVE = 0x100;
+
+    // columns of the expected counts after fields and methods
+    private static final int STATIC_FIELDS = 2;
+    private static final int INSTANCE_FIELDS = 3;
+    private static final int DIRECT_METHODS = 4;
+    private static final int VIRTUAL_METHODS = 5;
+
+    private static final String OBJECT = "Ljava/lang/Object;";
+    private static final String[] VALUE_TYPES = {
+        "I", "J", "Z", "B", "C", "S", "F", "D",
+        "Ljava/lang/String;", OBJECT, "[I", "[Ljava/lang/String;"
+    };
+
+    /**
+     * What one DEX file (or each dex of an APK) holds.
+     */
+    public static class Spec {
+        String name = "custom";
+        String format = "dex";
+        int dexes = 1;
+        boolean stored;
+        int packages = 10;
+        int depth = 1;
+        int classes = 10;
+        int fields = 3;
+        int methods = 6;
+        int protos = 40;
+        int externalClasses = 20;
+        int externalRefs = 100;
+        int defaultClasses = 0;
+        int strings = 0;
+        boolean bigEndian;
+        String magic = "036";
+        long seed = 1;
+
+        Spec copy(String name) {
+            Spec spec = new Spec();
+            spec.name = name;
+            spec.format = format;
+            spec.dexes = dexes;
+            spec.stored = stored;
+            spec.packages = packages;
+            spec.depth = depth;
+            spec.classes = classes;
+            spec.fields = fields;
+            spec.methods = methods;
+            spec.protos = protos;
+            spec.externalClasses = externalClasses;
+            spec.externalRefs = externalRefs;
+            spec.defaultClasses = defaultClasses;
+            spec.strings = strings;
+            spec.bigEndian = bigEndian;
+            spec.magic = magic;
+            spec.seed = seed;
+            return spec;
+        }
+    }
+
+    /** The standard corpus, by name. */
+    static final List<Spec> STANDARD = new ArrayList<Spec>();
+    static {
+        Spec small = new Spec().copy("small");
+        small.defaultClasses = 2;
+        STANDARD.add(small);
+
+        Spec medium = small.copy("medium");
+        medium.packages = 50;
+        medium.depth = 2;
+        medium.classes = 40;
+        medium.fields = 4;
+        medium.methods = 8;
+        medium.protos = 400;
+        medium.externalClasses = 200;
+        medium.externalRefs = 1000;
+        STANDARD.add(medium);
+
+        // close to, but under, 65536 method ids
+        Spec large = medium.copy("large");
+        large.packages = 200;
+        large.classes = 30;
+        large.fields = 5;
+        large.methods = 11;
+        large.protos = 3000;
+        large.externalClasses = 600;
+        large.externalRefs = 2500;
+        STANDARD.add(large);
+
+        Spec bigEndian = small.copy("big-endian");
+        bigEndian.bigEndian = true;
+        STANDARD.add(bigEndian);
+
+        Spec api13 = small.copy("api13");
+        api13.magic = "035";
+        STANDARD.add(api13);
+
+        Spec deep = small.copy("deep");
+        deep.packages = 20;
+        deep.depth = 40;
+        STANDARD.add(deep);
+
+        Spec strings = small.copy("strings");
+        strings.strings = 300000;
+        STANDARD.add(strings);
+
+        Spec multidex = small.copy("multidex");
+        multidex.format = "apk";
+        multidex.dexes = 100;
+        STANDARD.add(multidex);
+
+        Spec jar = medium.copy("stored");
+        jar.format = "jar";
+        jar.dexes = 3;
+        jar.stored = true;
+        STANDARD.add(jar);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Spec spec = null;
+        int idx;
+        for (idx = 0; idx < args.length; idx++) {
+            String arg = args[idx];
+            if (!arg.startsWith("--")) {
+                break;
+            }
+            if (spec == null) {
+                spec = new Spec();
+            }
+            String value = arg.indexOf('=') < 0 ? "" : arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--name=")) {
+                spec.name = value;
+            } else if (arg.startsWith("--format=")) {
+                spec.format = value;
+            } else if (arg.startsWith("--dexes=")) {
+                spec.dexes = Integer.parseInt(value);
+            } else if (arg.equals("--stored")) {
+                spec.stored = true;
+            } else if (arg.startsWith("--packages=")) {
+                spec.packages = Integer.parseInt(value);
+            } else if (arg.startsWith("--depth=")) {
+                spec.depth = Integer.parseInt(value);
+            } else if (arg.startsWith("--classes=")) {
+                spec.classes = Integer.parseInt(value);
+            } else if (arg.startsWith("--fields=")) {
+                spec.fields = Integer.parseInt(value);
+            } else if (arg.startsWith("--methods=")) {
+                spec.methods = Integer.parseInt(value);
+            } else if (arg.startsWith("--protos=")) {
+                spec.protos = Integer.parseInt(value);
+            } else if (arg.startsWith("--external-classes=")) {
+                spec.externalClasses = Integer.parseInt(value);
+            } else if (arg.startsWith("--external-refs=")) {
+                spec.externalRefs = Integer.parseInt(value);
+            } else if (arg.startsWith("--default-classes=")) {
+                spec.defaultClasses = Integer.parseInt(value);
+            } else if (arg.startsWith("--strings=")) {
+                spec.strings = Integer.parseInt(value);
+            } else if (arg.equals("--big-endian")) {
+                spec.bigEndian = true;
+            } else if (arg.startsWith("--magic=")) {
+                spec.magic = value;
+            } else if (arg.startsWith("--seed=")) {
+                spec.seed = Long.parseLong(value);
+            } else {
+                usage();
+            }
+        }
+        if (args.length - idx != 1) {
+            usage();
+        }
+
+        File outDir = new File(args[idx]);
+        if (!outDir.isDirectory() && !outDir.mkdirs()) {
+            throw new IOException("Unable to create " + outDir);
+        }
+        for (Spec s : spec != null ? Collections.singletonList(spec) : STANDARD) {
+            File file = write(s, outDir);
+            System.out.println(file + ": " + file.length() + " bytes");
+        }
+    }
+
+    private static void usage() {
+        System.err.println("Usage: DexCorpusGenerator [--name=N --format=dex|apk|jar --dexes=N " +
+                "--stored --packages=N --depth=N --classes=N --fields=N --methods=N --protos=N " +
+                "--external-classes=N --external-refs=N --default-classes=N --strings=N " +
+                "--big-endian --magic=035|036 --seed=N] <out-dir>");
+        System.exit(2);
+    }
+
+    /**
+     * Writes the file a spec describes, and its .expected counts.
+     *
+     * @return the file written
+     */
+    public static File write(Spec spec, File outDir) throws IOException {
+        Map<String, int[]> expected = new TreeMap<String, int[]>();
+        File file = new File(outDir, spec.name + "." + spec.format);
+
+        if (spec.format.equals("dex")) {
+            writeFile(file, generate(spec, 0, expected));
+        } else if (spec.format.equals("apk") || spec.format.equals("jar")) {
+            ZipOutputStream zip = new ZipOutputStream(new FileOutputStream(file));
+            try {
+                for (int i = 0; i < spec.dexes; i++) {
+                    byte[] dex = generate(spec, i, expected);
+                    ZipEntry entry = new ZipEntry(i == 0 ? "classes.dex" : "classes" + (i + 1) + ".dex");
+                    if (spec.stored) {
+                        CRC32 crc = new CRC32();
+                        crc.update(dex);
+                        entry.setMethod(ZipEntry.STORED);
+                        entry.setSize(dex.length);
+                        entry.setCompressedSize(dex.length);
+                        entry.setCrc(crc.getValue());
+                    }
+                    zip.putNextEntry(entry);
+                    zip.write(dex);
+                    zip.closeEntry();
+                }
+                zip.putNextEntry(new ZipEntry(spec.format.equals("apk") ?
+                        "AndroidManifest.xml" : "META-INF/MANIFEST.MF"));
+                zip.write("synthetic\n".getBytes("UTF-8"));
+                zip.closeEntry();
+            } finally {
+                zip.close();
+            }
+        } else {
+            throw new IllegalArgumentException("unknown format " + spec.format);
+        }
+
+        writeExpected(new File(outDir, spec.name + ".expected"), expected, false);
+        writeExpected(new File(outDir, spec.name + ".class-data.expected"), expected, true);
+        return file;
+    }
+
+    private static void writeFile(File file, byte[] bytes) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * @param classData whether to add the static, instance, direct and
+     *     virtual columns of the members each package declares
+     */
+    private static void writeExpected(File file, Map<String, int[]> expected, boolean classData)
+            throws IOException {
+        PrintStream out = new PrintStream(new FileOutputStream(file), false, "UTF-8");
+        try {
+            int fields = 0, methods = 0;
+            out.print(classData ?
+                    "fields\t\tmethods\t\tstatic\tinstance\tdirect\tvirtual\t\tpackage/class name\n" :
+                    "fields\t\tmethods\t\tpackage/class name\n");
+            for (Map.Entry<String, int[]> e : expected.entrySet()) {
+                int[] counts = e.getValue();
+                out.print(counts[0] + "\t\t" + counts[1] + "\t\t");
+                if (classData) {
+                    out.print(counts[2] + "\t" + counts[3] + "\t" + counts[4] + "\t" +
+                            counts[5] + "\t\t");
+                }
+                out.print(e.getKey() + "\n");
+                fields += counts[0];
+                methods += counts[1];
+            }
+            out.print("Overall field count: " + fields + "\n");
+            out.print("Overall method count: " + methods + "\n");
+        } finally {
+            out.close();
+        }
+    }
+
+    /*
+     * =======================================================================
+     *      Model
+     * =======================================================================
+     */
+
+    private static class Proto {
+        final String returnType;
+        final String[] params;
+
+        Proto(String returnType, String[] params) {
+            this.returnType = returnType;
+            this.params = params;
+        }
+
+        String shorty() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(shortyChar(returnType));
+            for (String param : params) {
+                sb.append(shortyChar(param));
+            }
+            return sb.toString();
+        }
+
+        String key() {
+            return returnType + Arrays.toString(params);
+        }
+
+        private static char shortyChar(String type) {
+            char ch = type.charAt(0);
+            return ch == '[' ? 'L' : ch;
+        }
+    }
+
+    private static class Member {
+        final String cls;
+        final String name;
+        final String type;          // field type
+        final Proto proto;          // method prototype
+        final int accessFlags;      // defined members only
+
+        Member(String cls, String name, String type, Proto proto, int accessFlags) {
+            this.cls = cls;
+            this.name = name;
+            this.type = type;
+            this.proto = proto;
+            this.accessFlags = accessFlags;
+        }
+    }
+
+    /**
+     * Generates one dex of a spec, adding its counts to expected.
+     */
+    static byte[] generate(Spec spec, int dexIndex, Map<String, int[]> expected) {
+        Random random = new Random(spec.seed * 1000003 + dexIndex);
+        String prefix = spec.dexes > 1 ? "com/gen/d" + dexIndex : "com/gen";
+
+        // defined classes, by package
+        List<String> definedClasses = new ArrayList<String>();
+        for (int p = 0; p < spec.packages; p++) {
+            StringBuilder pkg = new StringBuilder(prefix).append("/p").append(p);
+            for (int d = 1; d < spec.depth; d++) {
+                pkg.append("/s").append(d);
+            }
+            for (int c = 0; c < spec.classes; c++) {
+                definedClasses.add("L" + pkg + "/C" + c + (c % 5 == 4 ? "$Inner" : "") + ";");
+            }
+        }
+        for (int c = 0; c < spec.defaultClasses; c++) {
+            definedClasses.add("LDefault" + dexIndex + "_" + c + ";");
+        }
+        List<String> externalClasses = new ArrayList<String>();
+        externalClasses.add(OBJECT);
+        for (int e = 0; e < spec.externalClasses; e++) {
+            externalClasses.add("Landroid/ext/e" + (e % 10) + "/E" + e + ";");
+        }
+
+        List<Proto> protos = new ArrayList<Proto>();
+        Set<String> protoKeys = new LinkedHashSet<String>();
+        Proto voidProto = new Proto("V", new String[0]);
+        protos.add(voidProto);
+        protoKeys.add(voidProto.key());
+        for (int attempts = 0; protos.size() < spec.protos && attempts < spec.protos * 20; attempts++) {
+            String returnType = random.nextInt(3) == 0 ? "V" :
+                    VALUE_TYPES[random.nextInt(VALUE_TYPES.length)];
+            String[] params = new String[random.nextInt(4)];
+            for (int i = 0; i < params.length; i++) {
+                // some protos use the defined classes, as real ones do
+                params[i] = random.nextInt(4) == 0 ?
+                        definedClasses.get(random.nextInt(definedClasses.size())) :
+                        VALUE_TYPES[random.nextInt(VALUE_TYPES.length)];
+            }
+            Proto proto = new Proto(returnType, params);
+            if (protoKeys.add(proto.key())) {
+                protos.add(proto);
+            }
+        }
+
+        // members: defined ones, then references to framework classes
+        List<Member> fields = new ArrayList<Member>();
+        List<Member> methods = new ArrayList<Member>();
+        for (String cls : definedClasses) {
+            int fieldCount = vary(random, spec.fields);
+            for (int f = 0; f < fieldCount; f++) {
+                fields.add(new Member(cls, "f" + f, VALUE_TYPES[random.nextInt(VALUE_TYPES.length)],
+                        null, (f % 3 == 0 ? ACC_STATIC : 0) | ACC_PUBLIC));
+            }
+            int methodCount = vary(random, spec.methods);
+            for (int m = 0; m < methodCount; m++) {
+                int flags = m % 3 == 0 ? ACC_STATIC | ACC_NATIVE :
+                        m % 3 == 1 ? ACC_PRIVATE | ACC_NATIVE : ACC_PUBLIC | ACC_NATIVE;
+                methods.add(new Member(cls, "m" + m, null,
+                        protos.get(random.nextInt(protos.size())), flags));
+            }
+        }
+        methods.add(new Member(OBJECT, "<init>", null, voidProto, 0));
+        Set<String> refKeys = new TreeSet<String>();
+        for (int r = 0; r < spec.externalRefs; r++) {
+            String cls = externalClasses.get(1 + random.nextInt(externalClasses.size() - 1));
+            if (externalClasses.size() == 1 || !refKeys.add(cls + "#m" + (r % 50))) {
+                continue;
+            }
+            methods.add(new Member(cls, "em" + (r % 50), null,
+                    protos.get(random.nextInt(protos.size())), 0));
+        }
+        for (int r = 0; r < spec.externalRefs / 4; r++) {
+            String cls = externalClasses.get(random.nextInt(externalClasses.size()));
+            if (!refKeys.add(cls + "#f" + (r % 20))) {
+                continue;
+            }
+            fields.add(new Member(cls, "ef" + (r % 20),
+                    VALUE_TYPES[random.nextInt(VALUE_TYPES.length)], null, 0));
+        }
+
+        for (Member field : fields) {
+            count(expected, field.cls, 1, 0);
+        }
+        for (Member method : methods) {
+            count(expected, method.cls, 0, 1);
+        }
+        // only the defined classes have class_data_items to declare members in
+        Set<String> definedSet = new HashSet<String>(definedClasses);
+        for (Member field : fields) {
+            if (definedSet.contains(field.cls)) {
+                count(expected, field.cls,
+                        (field.accessFlags & ACC_STATIC) != 0 ? STATIC_FIELDS : INSTANCE_FIELDS);
+            }
+        }
+        for (Member method : methods) {
+            if (definedSet.contains(method.cls)) {
+                count(expected, method.cls, (method.accessFlags & (ACC_STATIC | ACC_PRIVATE)) != 0 ?
+                        DIRECT_METHODS : VIRTUAL_METHODS);
+            }
+        }
+
+        return new Writer(spec, random, definedClasses, externalClasses, protos, fields, methods)
+                .write();
+    }
+
+    /** Roughly average, from half to one and a half times it. */
+    private static int vary(Random random, int average) {
+        return average / 2 + random.nextInt(average + 1);
+    }
+
+    private static void count(Map<String, int[]> expected, String descriptor, int fields,
+            int methods) {
+        int[] counts = counts(expected, descriptor);
+        counts[0] += fields;
+        counts[1] += methods;
+    }
+
+    /** Counts one declared member in the given column of expected. */
+    private static void count(Map<String, int[]> expected, String descriptor, int column) {
+        counts(expected, descriptor)[column]++;
+    }
+
+    private static int[] counts(Map<String, int[]> expected, String descriptor) {
+        int slash = descriptor.lastIndexOf('/');
+        String pkg = slash < 0 ? "<no package>" :
+                descriptor.substring(1, slash).replace('/', '.');
+        int[] counts = expected.get(pkg);
+        if (counts == null) {
+            counts = new int[6];
+            expected.put(pkg, counts);
+        }
+        return counts;
+    }
+
+    /*
+     * =======================================================================
+     *      Encoding
+     * =======================================================================
+     */
+
+    /**
+     * Lays out and encodes one dex.
+     */
+    private static class Writer {
+        private final Spec spec;
+        private final List<String> definedClasses;
+        private final List<Proto> protos;
+        private final List<Member> fields;
+        private final List<Member> methods;
+        private final List<String> strings;
+        private final List<String> types;
+        private final Map<String, Integer> stringIds = new HashMap<String, Integer>();
+        private final Map<String, Integer> typeIds = new HashMap<String, Integer>();
+        private final Map<Proto, Integer> protoIds = new HashMap<Proto, Integer>();
+
+        Writer(Spec spec, Random random, List<String> definedClasses, List<String> externalClasses,
+                List<Proto> protos, List<Member> fields, List<Member> methods) {
+            this.spec = spec;
+            this.definedClasses = definedClasses;
+            this.fields = fields;
+            this.methods = methods;
+
+            Set<String> typeSet = new TreeSet<String>(definedClasses);
+            typeSet.addAll(externalClasses);
+            typeSet.add("V");
+            typeSet.addAll(Arrays.asList(VALUE_TYPES));
+            types = new ArrayList<String>(typeSet);
+
+            Set<String> stringSet = new TreeSet<String>(typeSet);
+            for (Proto proto : protos) {
+                stringSet.add(proto.shorty());
+            }
+            for (Member field : fields) {
+                stringSet.add(field.name);
+            }
+            for (Member method : methods) {
+                stringSet.add(method.name);
+            }
+            // unreferenced constants, some of them not ASCII
+            String[] alphabet = { "a", "b", "x", "\u00fc", "\u4e2d", "\ud83d\ude00", "\u0000" };
+            while (stringSet.size() < typeSet.size() + spec.strings) {
+                StringBuilder sb = new StringBuilder("str_");
+                int length = 4 + random.nextInt(24);
+                for (int i = 0; i < length; i++) {
+                    sb.append(random.nextInt(8) == 0 ?
+                            alphabet[random.nextInt(alphabet.length)] :
+                            String.valueOf((char) ('a' + random.nextInt(26))));
+                }
+                stringSet.add(sb.toString());
+            }
+            strings = new ArrayList<String>(stringSet);
+
+            // type_ids are sorted by string index, which is descriptor order
+            for (int i = 0; i < strings.size(); i++) {
+                stringIds.put(strings.get(i), i);
+            }
+            for (int i = 0; i < types.size(); i++) {
+                typeIds.put(types.get(i), i);
+            }
+
+            this.protos = new ArrayList<Proto>(protos);
+            Collections.sort(this.protos, new Comparator<Proto>() {
+                @Override
+                public int compare(Proto a, Proto b) {
+                    int cmp = typeIds.get(a.returnType) - typeIds.get(b.returnType);
+                    for (int i = 0; cmp == 0 && i < Math.min(a.params.length, b.params.length); i++) {
+                        cmp = typeIds.get(a.params[i]) - typeIds.get(b.params[i]);
+                    }
+                    return cmp != 0 ? cmp : a.params.length - b.params.length;
+                }
+            });
+            for (int i = 0; i < this.protos.size(); i++) {
+                protoIds.put(this.protos.get(i), i);
+            }
+
+            Collections.sort(fields, new Comparator<Member>() {
+                @Override
+                public int compare(Member a, Member b) {
+                    int cmp = typeIds.get(a.cls) - typeIds.get(b.cls);
+                    if (cmp == 0) {
+                        cmp = stringIds.get(a.name) - stringIds.get(b.name);
+                    }
+                    return cmp != 0 ? cmp : typeIds.get(a.type) - typeIds.get(b.type);
+                }
+            });
+            Collections.sort(methods, new Comparator<Member>() {
+                @Override
+                public int compare(Member a, Member b) {
+                    int cmp = typeIds.get(a.cls) - typeIds.get(b.cls);
+                    if (cmp == 0) {
+                        cmp = stringIds.get(a.name) - stringIds.get(b.name);
+                    }
+                    return cmp != 0 ? cmp : protoIds.get(a.proto) - protoIds.get(b.proto);
+                }
+            });
+
+            if (types.size() > ID_LIMIT || this.protos.size() > ID_LIMIT ||
+                    fields.size() > ID_LIMIT || methods.size() > ID_LIMIT) {
+                throw new IllegalArgumentException(spec.name + ": more than " + ID_LIMIT +
+                        " types, protos, fields or methods (" + types.size() + ", " +
+                        this.protos.size() + ", " + fields.size() + ", " + methods.size() + ")");
+            }
+        }
+
+        byte[] write() {
+            int stringIdsOff = HEADER_SIZE;
+            int typeIdsOff = stringIdsOff + 4 * strings.size();
+            int protoIdsOff = typeIdsOff + 4 * types.size();
+            int fieldIdsOff = protoIdsOff + 12 * protos.size();
+            int methodIdsOff = fieldIdsOff + 8 * fields.size();
+            int classDefsOff = methodIdsOff + 8 * methods.size();
+            int dataOff = classDefsOff + 32 * definedClasses.size();
+
+            Buf out = new Buf(spec.bigEndian);
+            out.skip(dataOff);
+
+            // data: type lists, string data, class data, then the map
+            int[] parametersOff = new int[protos.size()];
+            int typeListsOff = out.size();
+            int typeLists = 0;
+            for (int i = 0; i < protos.size(); i++) {
+                String[] params = protos.get(i).params;
+                if (params.length == 0) {
+                    continue;
+                }
+                out.align4();
+                parametersOff[i] = out.size();
+                out.u4(params.length);
+                for (String param : params) {
+                    out.u2(typeIds.get(param));
+                }
+                typeLists++;
+            }
+
+            int[] stringDataOff = new int[strings.size()];
+            int stringDataStart = out.size();
+            for (int i = 0; i < strings.size(); i++) {
+                stringDataOff[i] = out.size();
+                String s = strings.get(i);
+                out.uleb128(s.length());
+                out.mutf8(s);
+                out.u1(0);
+            }
+
+            int[] classDataOff = new int[definedClasses.size()];
+            int classDataStart = out.size();
+            int fieldIdx = 0, methodIdx = 0;
+            for (int c = 0; c < definedClasses.size(); c++) {
+                String cls = definedClasses.get(c);
+                int type = typeIds.get(cls);
+                // members are sorted by class; skip to this class's
+                List<Integer> staticFields = new ArrayList<Integer>();
+                List<Integer> instanceFields = new ArrayList<Integer>();
+                List<Integer> directMethods = new ArrayList<Integer>();
+                List<Integer> virtualMethods = new ArrayList<Integer>();
+                for (fieldIdx = firstOf(fields, type); fieldIdx < fields.size() &&
+                        typeIds.get(fields.get(fieldIdx).cls) == type; fieldIdx++) {
+                    ((fields.get(fieldIdx).accessFlags & ACC_STATIC) != 0 ?
+                            staticFields : instanceFields).add(fieldIdx);
+                }
+                for (methodIdx = firstOf(methods, type); methodIdx < methods.size() &&
+                        typeIds.get(methods.get(methodIdx).cls) == type; methodIdx++) {
+                    ((methods.get(methodIdx).accessFlags & (ACC_STATIC | ACC_PRIVATE)) != 0 ?
+                            directMethods : virtualMethods).add(methodIdx);
+                }
+
+                classDataOff[c] = out.size();
+                out.uleb128(staticFields.size());
+                out.uleb128(instanceFields.size());
+                out.uleb128(directMethods.size());
+                out.uleb128(virtualMethods.size());
+                encodedMembers(out, staticFields, fields);
+                encodedMembers(out, instanceFields, fields);
+                encodedMembers(out, directMethods, methods);
+                encodedMembers(out, virtualMethods, methods);
+            }
+
+            out.align4();
+            int mapOff = out.size();
+            List<int[]> map = new ArrayList<int[]>();
+            map.add(new int[] { 0x0000, 1, 0 });
+            map.add(new int[] { 0x0001, strings.size(), stringIdsOff });
+            map.add(new int[] { 0x0002, types.size(), typeIdsOff });
+            map.add(new int[] { 0x0003, protos.size(), protoIdsOff });
+            map.add(new int[] { 0x0004, fields.size(), fieldIdsOff });
+            map.add(new int[] { 0x0005, methods.size(), methodIdsOff });
+            map.add(new int[] { 0x0006, definedClasses.size(), classDefsOff });
+            map.add(new int[] { 0x1001, typeLists, typeListsOff });
+            map.add(new int[] { 0x2002, strings.size(), stringDataStart });
+            map.add(new int[] { 0x2000, definedClasses.size(), classDataStart });
+            map.add(new int[] { 0x1000, 1, mapOff });
+            int mapSize = 0;
+            for (int[] item : map) {
+                if (item[1] != 0) {
+                    mapSize++;
+                }
+            }
+            out.u4(mapSize);
+            for (int[] item : map) {
+                if (item[1] != 0) {
+                    out.u2(item[0]);
+                    out.u2(0);
+                    out.u4(item[1]);
+                    out.u4(item[2]);
+                }
+            }
+            out.align4();
+            int fileSize = out.size();
+
+            // id tables
+            out.seek(stringIdsOff);
+            for (int off : stringDataOff) {
+                out.u4(off);
+            }
+            for (String type : types) {
+                out.u4(stringIds.get(type));
+            }
+            for (int i = 0; i < protos.size(); i++) {
+                Proto proto = protos.get(i);
+                out.u4(stringIds.get(proto.shorty()));
+                out.u4(typeIds.get(proto.returnType));
+                out.u4(parametersOff[i]);
+            }
+            for (Member field : fields) {
+                out.u2(typeIds.get(field.cls));
+                out.u2(typeIds.get(field.type));
+                out.u4(stringIds.get(field.name));
+            }
+            for (Member method : methods) {
+                out.u2(typeIds.get(method.cls));
+                out.u2(protoIds.get(method.proto));
+                out.u4(stringIds.get(method.name));
+            }
+            for (int c = 0; c < definedClasses.size(); c++) {
+                out.u4(typeIds.get(definedClasses.get(c)));
+                out.u4(ACC_PUBLIC);
+                out.u4(typeIds.get(OBJECT));
+                out.u4(0);                  // interfaces_off
+                out.u4(NO_INDEX);           // source_file_idx
+                out.u4(0);                  // annotations_off
+                out.u4(classDataOff[c]);
+                out.u4(0);                  // static_values_off
+            }
+
+            // header, checksum and signature last
+            out.seek(0);
+            out.bytes(("dex\n" + spec.magic + "\0").getBytes());
+            out.skip(4 + 20);
+            out.u4(fileSize);
+            out.u4(HEADER_SIZE);
+            out.u4(0x12345678);             // endian_tag, in the file's order
+            out.u4(0);                      // link_size
+            out.u4(0);                      // link_off
+            out.u4(mapOff);
+            out.u4(strings.size());
+            out.u4(strings.isEmpty() ? 0 : stringIdsOff);
+            out.u4(types.size());
+            out.u4(types.isEmpty() ? 0 : typeIdsOff);
+            out.u4(protos.size());
+            out.u4(protos.isEmpty() ? 0 : protoIdsOff);
+            out.u4(fields.size());
+            out.u4(fields.isEmpty() ? 0 : fieldIdsOff);
+            out.u4(methods.size());
+            out.u4(methods.isEmpty() ? 0 : methodIdsOff);
+            out.u4(definedClasses.size());
+            out.u4(definedClasses.isEmpty() ? 0 : classDefsOff);
+            out.u4(fileSize - dataOff);
+            out.u4(dataOff);
+
+            byte[] dex = out.toByteArray();
+            try {
+                MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+                sha1.update(dex, 32, dex.length - 32);
+                System.arraycopy(sha1.digest(), 0, dex, 12, 20);
+            } catch (NoSuchAlgorithmException nsae) {
+                throw new AssertionError(nsae);
+            }
+            Adler32 adler = new Adler32();
+            adler.update(dex, 12, dex.length - 12);
+            out.seek(8);
+            out.u4((int) adler.getValue());
+            System.arraycopy(out.toByteArray(), 8, dex, 8, 4);
+            return dex;
+        }
+
+        private int firstOf(List<Member> members, int type) {
+            int lo = 0, hi = members.size();
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (typeIds.get(members.get(mid).cls) < type) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            return lo;
+        }
+
+        /**
+         * Writes encoded_fields or encoded_methods (with no code).
+         */
+        private static void encodedMembers(Buf out, List<Integer> indices, List<Member> members) {
+            int previous = 0;
+            boolean methods = !indices.isEmpty() && members.get(indices.get(0)).proto != null;
+            for (int idx : indices) {
+                out.uleb128(idx - previous);
+                out.uleb128(members.get(idx).accessFlags);
+                if (methods) {
+                    out.uleb128(0);         // code_off
+                }
+                previous = idx;
+            }
+        }
+    }
+
+    /**
+     * A growable byte array written in one byte order.
+     */
+    private static class Buf {
+        private final boolean bigEndian;
+        private byte[] bytes = new byte[1 << 16];
+        private int pos;
+        private int size;
+
+        Buf(boolean bigEndian) {
+            this.bigEndian = bigEndian;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void seek(int position) {
+            pos = position;
+        }
+
+        void skip(int count) {
+            ensure(pos + count);
+            pos += count;
+            size = Math.max(size, pos);
+        }
+
+        void align4() {
+            while ((pos & 3) != 0) {
+                u1(0);
+            }
+        }
+
+        void u1(int value) {
+            ensure(pos + 1);
+            bytes[pos++] = (byte) value;
+            size = Math.max(size, pos);
+        }
+
+        void u2(int value) {
+            if (bigEndian) {
+                u1(value >> 8);
+                u1(value);
+            } else {
+                u1(value);
+                u1(value >> 8);
+            }
+        }
+
+        void u4(int value) {
+            if (bigEndian) {
+                u2(value >>> 16);
+                u2(value);
+            } else {
+                u2(value);
+                u2(value >>> 16);
+            }
+        }
+
+        void uleb128(int value) {
+            while ((value & ~0x7f) != 0) {
+                u1((value & 0x7f) | 0x80);
+                value >>>= 7;
+            }
+            u1(value);
+        }
+
+        void bytes(byte[] b) {
+            for (byte value : b) {
+                u1(value);
+            }
+        }
+
+        /**
+         * Modified UTF-8: NUL as two bytes, supplementary characters as
+         * two three-byte surrogates.
+         */
+        void mutf8(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                char ch = s.charAt(i);
+                if (ch != 0 && ch < 0x80) {
+                    u1(ch);
+                } else if (ch < 0x800) {
+                    u1(0xc0 | (ch >> 6));
+                    u1(0x80 | (ch & 0x3f));
+                } else {
+                    u1(0xe0 | (ch >> 12));
+                    u1(0x80 | ((ch >> 6) & 0x3f));
+                    u1(0x80 | (ch & 0x3f));
+                }
+            }
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(bytes, size);
+        }
+
+        private void ensure(int capacity) {
+            if (capacity > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(capacity, bytes.length * 2));
+            }
+        }
+    }
+}
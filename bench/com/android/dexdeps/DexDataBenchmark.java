@@ -0,0 +1,149 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * DexData.load() as a whole and phase by phase, decoding the whole
+ * string table on one thread and across the common pool, and the ref
+ * builders.
+ *
+ * Each phase only reads the DEX and replaces its own tables, so the
+ * phase benchmarks simply rerun one phase on a fully loaded DexData.
+ * loadStrings() drops the decoded string cache, so the ref builders run
+ * against whatever the previous invocation left cached.
+ *
+ * gradle jmh -Pdex=small.dex,large.dex -PjmhOptions=DexDataBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DexDataBenchmark {
+    /** Inputs of different sizes, each reported separately. */
+    @Param({""})
+    public String dex;
+
+    private ByteBuffer bytes;
+    private DexData dexData;
+
+    @Setup
+    public void setUp() throws IOException {
+        bytes = BenchmarkDex.read(dex);
+        dexData = BenchmarkDex.load(bytes);
+    }
+
+    @Benchmark
+    public DexData load() throws IOException {
+        DexData fresh = new DexData(bytes.duplicate());
+        fresh.load();
+        return fresh;
+    }
+
+    @Benchmark
+    public DexData parseHeaderItem() throws IOException {
+        dexData.parseHeaderItem();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadStrings() throws IOException {
+        dexData.loadStrings();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadTypeIds() throws IOException {
+        dexData.loadTypeIds();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadProtoIds() throws IOException {
+        dexData.loadProtoIds();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadFieldIds() throws IOException {
+        dexData.loadFieldIds();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadMethodIds() throws IOException {
+        dexData.loadMethodIds();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData loadClassDefs() throws IOException {
+        dexData.loadClassDefs();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData markInternalClasses() throws IOException {
+        dexData.markInternalClasses();
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData decodeNames() throws IOException {
+        dexData.loadStrings();
+        dexData.decodeNames(null);
+        return dexData;
+    }
+
+    @Benchmark
+    public DexData decodeNamesParallel() throws IOException {
+        dexData.loadStrings();
+        dexData.decodeNames(ForkJoinPool.commonPool());
+        return dexData;
+    }
+
+    @Benchmark
+    public MethodRef[] getMethodRefs() {
+        return dexData.getMethodRefs();
+    }
+
+    @Benchmark
+    public FieldRef[] getFieldRefs() {
+        return dexData.getFieldRefs();
+    }
+
+    @Benchmark
+    public int[] getMethodCountsByType() {
+        return dexData.getMethodCountsByType();
+    }
+}
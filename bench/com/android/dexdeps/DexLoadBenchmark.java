@@ -0,0 +1,127 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Compares DexData.load() through the RandomAccessFile source against the
+ * memory-mapped source.
+ *
+ * Usage: DexLoadBenchmark <file.{dex,apk,jar}> ...
+ */
+public class DexLoadBenchmark {
+    private static final int WARMUP = 3;
+    private static final int ITERATIONS = 10;
+
+    public static void main(String[] args) throws IOException {
+        List<File> dexFiles = new ArrayList<File>();
+        for (String arg : args) {
+            collectDexFiles(arg, dexFiles);
+        }
+        if (dexFiles.isEmpty()) {
+            System.err.println("Usage: DexLoadBenchmark <file.{dex,apk,jar}> ...");
+            System.exit(2);
+        }
+
+        long bytes = 0;
+        for (File file : dexFiles) {
+            bytes += file.length();
+        }
+        System.out.println(dexFiles.size() + " dex file(s), " + bytes + " bytes");
+
+        for (int i = 0; i < WARMUP; i++) {
+            loadAll(dexFiles, false);
+            loadAll(dexFiles, true);
+        }
+
+        long rafNanos = 0;
+        long mapNanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            rafNanos += loadAll(dexFiles, false);
+            mapNanos += loadAll(dexFiles, true);
+        }
+
+        double rafMs = rafNanos / 1e6 / ITERATIONS;
+        double mapMs = mapNanos / 1e6 / ITERATIONS;
+        System.out.printf("RandomAccessFile: %10.2f ms/op%n", rafMs);
+        System.out.printf("MappedByteBuffer: %10.2f ms/op%n", mapMs);
+        System.out.printf("speedup:          %10.1fx%n", rafMs / mapMs);
+    }
+
+    private static long loadAll(List<File> dexFiles, boolean mapped) throws IOException {
+        long start = System.nanoTime();
+        for (File file : dexFiles) {
+            RandomAccessFile raf = new RandomAccessFile(file, "r");
+            try {
+                DexSource source = mapped ? DexSource.map(raf) : DexSource.of(raf);
+                new DexData(source).load();
+            } finally {
+                raf.close();
+            }
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Adds the file itself, or every classes*.dex inside it extracted to
+     * a temporary file.
+     */
+    private static void collectDexFiles(String fileName, List<File> dexFiles) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(fileName);
+        } catch (ZipException ze) {
+            dexFiles.add(new File(fileName));
+            return;
+        }
+
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (!entry.getName().matches("classes.*\\.dex")) {
+                    continue;
+                }
+                File tempFile = File.createTempFile("dexbench", ".dex");
+                tempFile.deleteOnExit();
+                InputStream in = zipFile.getInputStream(entry);
+                OutputStream out = new FileOutputStream(tempFile);
+                try {
+                    byte copyBuf[] = new byte[32768];
+                    int actual;
+                    while ((actual = in.read(copyBuf)) != -1) {
+                        out.write(copyBuf, 0, actual);
+                    }
+                } finally {
+                    out.close();
+                    in.close();
+                }
+                dexFiles.add(tempFile);
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+}
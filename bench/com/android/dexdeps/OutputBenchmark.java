@@ -0,0 +1,80 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Descriptor to name conversion over every class descriptor in a dex,
+ * uncached.
+ *
+ * gradle jmh -Pdex=small.dex,large.dex -PjmhOptions=OutputBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OutputBenchmark {
+    @Param({""})
+    public String dex;
+
+    private String[] descriptors;
+
+    @Setup
+    public void setUp() throws IOException {
+        DexData dexData = BenchmarkDex.load(BenchmarkDex.read(dex));
+        int count = 0;
+        String[] all = new String[dexData.getTypeIdsSize()];
+        for (int i = 0; i < all.length; i++) {
+            String descriptor = dexData.getTypeDescriptor(i);
+            // only classes get counted under a name
+            if (descriptor.startsWith("L")) {
+                all[count++] = descriptor;
+            }
+        }
+        descriptors = Arrays.copyOf(all, count);
+    }
+
+    @Benchmark
+    public void descriptorToDot(Blackhole bh) {
+        for (String descriptor : descriptors) {
+            bh.consume(Output.descriptorToDot(descriptor));
+        }
+    }
+
+    @Benchmark
+    public void packageNameOnly(Blackhole bh) {
+        for (String descriptor : descriptors) {
+            bh.consume(Output.packageNameOnly(descriptor));
+        }
+    }
+}
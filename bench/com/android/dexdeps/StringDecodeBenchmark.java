@@ -0,0 +1,163 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipFile;
+
+/**
+ * Decodes every string_data_item of the given dexes, once with the old
+ * byte-at-a-time standard UTF-8 path and once with Mutf8Decoder.
+ *
+ * Usage: StringDecodeBenchmark <file.{dex,apk,jar}> ...
+ */
+public class StringDecodeBenchmark {
+    private static final int WARMUP = 100;
+    private static final int ITERATIONS = 100;
+
+    public static void main(String[] args) throws IOException {
+        List<byte[]> dexes = new ArrayList<byte[]>();
+        for (String arg : args) {
+            readDexes(arg, dexes);
+        }
+        if (dexes.isEmpty()) {
+            System.err.println("Usage: StringDecodeBenchmark <file.{dex,apk,jar}> ...");
+            System.exit(2);
+        }
+
+        List<int[]> offsets = new ArrayList<int[]>();
+        int strings = 0;
+        for (byte[] dex : dexes) {
+            int[] stringOffsets = stringOffsets(dex);
+            offsets.add(stringOffsets);
+            strings += stringOffsets.length;
+        }
+        System.out.println(dexes.size() + " dex file(s), " + strings + " strings");
+
+        for (int i = 0; i < WARMUP; i++) {
+            decodeAll(dexes, offsets, false);
+            decodeAll(dexes, offsets, true);
+        }
+
+        long legacyNanos = 0;
+        long mutf8Nanos = 0;
+        for (int i = 0; i < ITERATIONS; i++) {
+            legacyNanos += decodeAll(dexes, offsets, false);
+            mutf8Nanos += decodeAll(dexes, offsets, true);
+        }
+
+        double legacyMs = legacyNanos / 1e6 / ITERATIONS;
+        double mutf8Ms = mutf8Nanos / 1e6 / ITERATIONS;
+        System.out.printf("byte-at-a-time UTF-8: %10.2f ms/op%n", legacyMs);
+        System.out.printf("Mutf8Decoder:         %10.2f ms/op%n", mutf8Ms);
+        System.out.printf("speedup:              %10.1fx%n", legacyMs / mutf8Ms);
+    }
+
+    private static long decodeAll(List<byte[]> dexes, List<int[]> offsets,
+            boolean mutf8) throws IOException {
+        long start = System.nanoTime();
+        int sink = 0;
+        for (int d = 0; d < dexes.size(); d++) {
+            DexSource source = DexSource.of(ByteBuffer.wrap(dexes.get(d)));
+            for (int offset : offsets.get(d)) {
+                source.seek(offset);
+                String str = mutf8 ? source.readString() : legacyReadString(source);
+                sink += str.length();
+            }
+        }
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * The string reader DexData used to have: a fresh worst-case buffer
+     * per string, filled one readByte() at a time, decoded as UTF-8.
+     */
+    private static String legacyReadString(DexSource source) throws IOException {
+        int utf16len = source.readUnsignedLeb128();
+        byte inBuf[] = new byte[utf16len * 3];
+        int idx;
+
+        for (idx = 0; idx < inBuf.length; idx++) {
+            byte val = source.readByte();
+            if (val == 0)
+                break;
+            inBuf[idx] = val;
+        }
+
+        return new String(inBuf, 0, idx, "UTF-8");
+    }
+
+    /**
+     * Reads the string_ids table of a little-endian dex.
+     */
+    private static int[] stringOffsets(byte[] dex) {
+        ByteBuffer buf = ByteBuffer.wrap(dex).order(ByteOrder.LITTLE_ENDIAN);
+        int count = buf.getInt(0x38);
+        int off = buf.getInt(0x3c);
+        int[] offsets = new int[count];
+        for (int i = 0; i < count; i++) {
+            offsets[i] = buf.getInt(off + i * 4);
+        }
+        return offsets;
+    }
+
+    private static void readDexes(String fileName, List<byte[]> dexes) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(fileName);
+        } catch (ZipException ze) {
+            dexes.add(readFully(new FileInputStream(new File(fileName))));
+            return;
+        }
+
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (entry.getName().matches("classes.*\\.dex")) {
+                    dexes.add(readFully(zipFile.getInputStream(entry)));
+                }
+            }
+        } finally {
+            zipFile.close();
+        }
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte copyBuf[] = new byte[32768];
+            int actual;
+            while ((actual = in.read(copyBuf)) != -1) {
+                out.write(copyBuf, 0, actual);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Counts every file of a generated corpus and compares the output with
+ * the .expected file DexCorpusGenerator wrote next to it, and again with
+ * --class-data against its .class-data.expected file.
+ *
+ * Each file is then run through a matrix of options that must not change
+ * what is printed.  For every set of output options (OUTPUTS), the serial
+ * run without a cache is the reference, and --threads, --heap-budget,
+ * cold and warm --cache-dir runs, --jobs over several inputs and snapshot
+ * round trips have to print exactly the same.
+ *
+ * gradle checkCorpus
+ */
+public class CorpusCheck {
+    private static final String[] FORMATS = { "dex", "apk", "jar" };
+
+    /** Options that change the output; each gets its own reference run. */
+    private static final String[][] OUTPUTS = {
+            {},
+            { "--filter=DEFINED_ONLY" },
+            { "--filter=REFERENCED_ONLY" },
+            { "--output_style=TREE" },
+            { "--class-data" },
+    };
+
+    /** Options that must not change the output of one input. */
+    private static final String[][] VARIANTS = {
+            { "--threads=4" },
+            { "--heap-budget=1" },
+    };
+
+    /** The same, for several inputs at once. */
+    private static final String[][] JOB_VARIANTS = {
+            { "--jobs=3" },
+            { "--jobs=3", "--threads=2" },
+            { "--jobs=3", "--heap-budget=1" },
+    };
+
+    private final File tempDir;
+    private int checked, failed;
+
+    private CorpusCheck(File tempDir) {
+        this.tempDir = tempDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 1) {
+            System.err.println("Usage: CorpusCheck <corpus-dir>");
+            System.exit(2);
+        }
+
+        File[] expectedFiles = new File(args[0]).listFiles();
+        if (expectedFiles == null) {
+            System.err.println("Not a directory: " + args[0]);
+            System.exit(2);
+        }
+        Arrays.sort(expectedFiles);
+
+        File tempDir = Files.createTempDirectory("corpus-check").toFile();
+        CorpusCheck check = new CorpusCheck(tempDir);
+        try {
+            List<File> inputs = new ArrayList<File>();
+            for (File expectedFile : expectedFiles) {
+                String name = expectedFile.getName();
+                if (!name.endsWith(".expected") || name.endsWith(".class-data.expected")) {
+                    continue;
+                }
+                name = name.substring(0, name.length() - ".expected".length());
+                File input = null;
+                for (String format : FORMATS) {
+                    File candidate = new File(expectedFile.getParentFile(), name + "." + format);
+                    if (candidate.isFile()) {
+                        input = candidate;
+                    }
+                }
+                if (input == null) {
+                    System.err.println(name + ": no input next to " + expectedFile);
+                    check.failed++;
+                    continue;
+                }
+                inputs.add(input);
+            }
+
+            for (File input : inputs) {
+                check.checkExpected(input, new String[0], ".expected");
+                check.checkExpected(input, new String[] { "--class-data" }, ".class-data.expected");
+                // the other input of --jobs and snapshot diffs
+                check.checkMatrix(input, inputs.get(0));
+            }
+        } finally {
+            delete(tempDir);
+        }
+
+        System.out.println(check.checked + " checked, " + check.failed + " failed");
+        if (check.failed != 0 || check.checked == 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Compares the output for the input, less its "Processing" line, with
+     * the file of the given suffix next to it.
+     */
+    private void checkExpected(File input, String[] options, String suffix) throws IOException {
+        String name = input.getName();
+        File expectedFile = new File(input.getParentFile(),
+                name.substring(0, name.lastIndexOf('.')) + suffix);
+        String expected = new String(Files.readAllBytes(expectedFile.toPath()), "UTF-8");
+        String actual = run(join(options, input.getPath()));
+        if (!actual.startsWith("exit status ")) {
+            actual = actual.substring(actual.indexOf('\n') + 1);
+        }
+        String label = input.getName() + (options.length == 0 ? "" : " " + options[0]);
+        checked++;
+        if (actual.equals(expected)) {
+            System.out.println("ok   " + label);
+        } else {
+            failed++;
+            System.out.println("FAIL " + label);
+            System.out.println("expected:\n" + expected + "actual:\n" + actual);
+        }
+    }
+
+    /**
+     * Runs the input through every variant of every set of output options,
+     * each compared with the serial run of the same output options.
+     */
+    private void checkMatrix(File input, File other) throws IOException {
+        String path = input.getPath();
+        String[] inputs = { path, other.getPath(), path };
+        int before = checked, failedBefore = failed;
+
+        for (String[] output : OUTPUTS) {
+            String reference = run(join(output, path));
+            for (String[] variant : VARIANTS) {
+                compare(input, reference, join(variant, join(output, path)));
+            }
+
+            File cacheDir = new File(tempDir, "cache");
+            String[] cached = join(new String[] { "--cache-dir=" + cacheDir }, join(output, path));
+            compare(input, reference, cached);      // cold
+            compare(input, reference, cached);      // warm
+            delete(cacheDir);
+
+            String jobsReference = run(join(output, inputs));
+            for (String[] variant : JOB_VARIANTS) {
+                compare(input, jobsReference, join(variant, join(output, inputs)));
+            }
+
+            // TREE and --class-data don't change what a snapshot holds
+            if (output.length == 0 || output[0].startsWith("--filter=")) {
+                checkSnapshot(input, other, output, reference);
+            }
+        }
+
+        if (failed == failedBefore) {
+            System.out.println("ok   " + input.getName() + " (" + (checked - before) + " runs)");
+        }
+    }
+
+    /**
+     * Saves a snapshot of the input, which must print what counting it
+     * does, then diffs the other input against it, which must print what
+     * diffing the two files does.
+     */
+    private void checkSnapshot(File input, File other, String[] output, String reference)
+            throws IOException {
+        File snapshot = new File(tempDir, "snapshot");
+        compare(input, reference, join(new String[] { "--save-snapshot=" + snapshot },
+                join(output, input.getPath())));
+
+        String[] diff = join(new String[] { "--diff-tolerance=0" }, output);
+        String diffReference = run(join(join(new String[] { "--diff" }, diff),
+                input.getPath(), other.getPath()));
+        String[] against = join(join(new String[] { "--against-snapshot=" + snapshot }, diff),
+                other.getPath());
+        String actual = run(against).replace(snapshot.getPath(), input.getPath());
+        check(input, diffReference, actual, against);
+        snapshot.delete();
+    }
+
+    private void compare(File input, String reference, String[] args) throws IOException {
+        check(input, reference, run(args), args);
+    }
+
+    private void check(File input, String reference, String actual, String[] args) {
+        checked++;
+        // a run that fails the same way as its reference proves nothing
+        if (actual.equals(reference) && !reference.startsWith("exit status ")) {
+            return;
+        }
+        failed++;
+        System.out.println("FAIL " + input.getName() + " " + Arrays.toString(args));
+        String[] expectedLines = reference.split("\n", -1);
+        String[] actualLines = actual.split("\n", -1);
+        for (int i = 0; ; i++) {
+            if (i >= expectedLines.length || i >= actualLines.length ||
+                    !expectedLines[i].equals(actualLines[i])) {
+                System.out.println("  line " + (i + 1) + ": expected " +
+                        (i < expectedLines.length ? "\"" + expectedLines[i] + "\"" : "end") +
+                        ", got " + (i < actualLines.length ? "\"" + actualLines[i] + "\"" : "end"));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Returns what Main prints for the arguments, preceded by the exit
+     * status if it isn't 0.
+     */
+    private static String run(String[] args) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        PrintStream saved = System.out;
+        System.setOut(new PrintStream(bytes, true, "UTF-8"));
+        int status;
+        try {
+            status = new Main().run(args);
+        } finally {
+            System.setOut(saved);
+        }
+        String output = bytes.toString("UTF-8");
+        if (status != 0) {
+            return "exit status " + status + "\n" + output;
+        }
+        return output;
+    }
+
+    private static String[] join(String[] first, String... rest) {
+        String[] args = Arrays.copyOf(first, first.length + rest.length);
+        System.arraycopy(rest, 0, args, first.length, rest.length);
+        return args;
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.BenchmarkDex;
+import com.android.dexdeps.DexData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counting a loaded dex, in both output styles.
+ *
+ * The package name cache is shared by the whole run, so after warmup
+ * generate2 measures counting with every name already converted, as for
+ * the later dexes of a batch.
+ *
+ * gradle jmh -Pdex=small.dex,large.dex -PjmhOptions=CountBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class CountBenchmark {
+    @Param({""})
+    public String dex;
+
+    @Param({"FLAT", "TREE"})
+    public String style;
+
+    private DexData dexData;
+    private DexFieldMethodCounts.OutputStyle outputStyle;
+
+    @Setup
+    public void setUp() throws IOException {
+        dexData = BenchmarkDex.load(BenchmarkDex.read(dex));
+        outputStyle = DexFieldMethodCounts.OutputStyle.valueOf(style);
+    }
+
+    @Benchmark
+    public DexFieldMethodCounts generate2() {
+        DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle);
+        counts.generate2(dexData, false, null, DexFieldMethodCounts.Filter.ALL);
+        counts.calcPackageCount();
+        return counts;
+    }
+}
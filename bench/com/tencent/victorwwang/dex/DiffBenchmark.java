@@ -0,0 +1,107 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.BenchmarkDex;
+import com.android.dexdeps.DexData;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The diff engine: the merge over two sides' package counts, collecting
+ * a side's member fingerprints, and the merge over two such sets.
+ *
+ * gradle jmh -Pdex=small.dex,large.dex -PjmhOptions=DiffBenchmark
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DiffBenchmark {
+    @Param({""})
+    public String dex;
+
+    private DexData dexData;
+    private Map<String, DexFieldMethodCounts.IntPair> before;
+    private Map<String, DexFieldMethodCounts.IntPair> after;
+    private DexDiff.Members members;
+    private DexDiff diff;
+
+    @Setup
+    public void setUp() throws IOException {
+        dexData = BenchmarkDex.load(BenchmarkDex.read(dex));
+        DexFieldMethodCounts counts = new DexFieldMethodCounts(DexFieldMethodCounts.OutputStyle.FLAT);
+        counts.generate2(dexData, false, null, DexFieldMethodCounts.Filter.ALL);
+        counts.calcPackageCount();
+        before = counts.packageCount;
+        // every other package changed, so half the rows get printed
+        after = new TreeMap<String, DexFieldMethodCounts.IntPair>();
+        int i = 0;
+        for (Map.Entry<String, DexFieldMethodCounts.IntPair> e : before.entrySet()) {
+            DexFieldMethodCounts.IntPair pair = e.getValue();
+            after.put(e.getKey(), i++ % 2 == 0 ? pair :
+                    new DexFieldMethodCounts.IntPair(pair.first + 10, pair.second + 10));
+        }
+
+        members = new DexDiff.Members(Collections.singletonList(dexData),
+                DexFieldMethodCounts.Filter.ALL, null, false);
+        diff = new DexDiff(2, new PrintStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }));
+    }
+
+    @Benchmark
+    public void diffCounts() {
+        diff.diffCounts(before, after);
+    }
+
+    @Benchmark
+    public DexDiff.Members members() {
+        return new DexDiff.Members(Collections.singletonList(dexData),
+                DexFieldMethodCounts.Filter.ALL, null, false);
+    }
+
+    /** Both sides the same: a full merge that finds nothing to print. */
+    @Benchmark
+    public void diffMembers() {
+        diff.diffMembers(members, members);
+    }
+}
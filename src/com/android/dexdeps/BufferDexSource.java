@@ -0,0 +1,152 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * DexSource over a ByteBuffer, usually a MappedByteBuffer for the whole
+ * file.  Reads are plain buffer accesses with no system calls.
+ */
+class BufferDexSource extends DexSource {
+    private final ByteBuffer mBuffer;
+
+    BufferDexSource(ByteBuffer buffer) {
+        // slice so that position 0 is the start of the DEX
+        mBuffer = buffer.slice();
+        mBuffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    void order(ByteOrder order) {
+        mBuffer.order(order);
+    }
+
+    @Override
+    DexSource duplicate() {
+        ByteBuffer view = mBuffer.duplicate();
+        view.position(0);
+        BufferDexSource copy = new BufferDexSource(view);
+        copy.mBuffer.order(mBuffer.order());
+        return copy;
+    }
+
+    @Override
+    void seek(int position) throws EOFException {
+        if (position < 0 || position > mBuffer.limit()) {
+            throw new EOFException("seek to " + position + " past end of " +
+                    mBuffer.limit() + "-byte DEX");
+        }
+        mBuffer.position(position);
+    }
+
+    @Override
+    void readBytes(byte[] buffer) throws EOFException {
+        try {
+            mBuffer.get(buffer);
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    byte readByte() throws EOFException {
+        try {
+            return mBuffer.get();
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    short readShort() throws EOFException {
+        try {
+            return mBuffer.getShort();
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException();
+        }
+    }
+
+    @Override
+    int readInt() throws EOFException {
+        try {
+            return mBuffer.getInt();
+        } catch (BufferUnderflowException bue) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Reads up to the five bytes a 32-bit value takes, unrolled, with
+     * absolute gets and a single position update.
+     */
+    @Override
+    int readUnsignedLeb128() throws EOFException {
+        int pos = mBuffer.position();
+        try {
+            int result = mBuffer.get(pos++);
+            if (result < 0) {
+                result &= 0x7f;
+                int cur = mBuffer.get(pos++);
+                result |= (cur & 0x7f) << 7;
+                if (cur < 0) {
+                    cur = mBuffer.get(pos++);
+                    result |= (cur & 0x7f) << 14;
+                    if (cur < 0) {
+                        cur = mBuffer.get(pos++);
+                        result |= (cur & 0x7f) << 21;
+                        if (cur < 0) {
+                            cur = mBuffer.get(pos++);
+                            result |= cur << 28;
+                        }
+                    }
+                }
+            }
+            mBuffer.position(pos);
+            return result;
+        } catch (IndexOutOfBoundsException ioobe) {
+            throw new EOFException();
+        }
+    }
+
+    /**
+     * Decodes straight out of the backing array when there is one; a
+     * direct or mapped buffer is copied in bulk into scratch first.
+     */
+    @Override
+    String readString() throws IOException {
+        int utf16len = readUnsignedLeb128();
+        int start = mBuffer.position();
+        String str;
+
+        if (mBuffer.hasArray()) {
+            int off = mBuffer.arrayOffset();
+            str = mDecoder.decode(mBuffer.array(), off + start,
+                    off + mBuffer.limit(), utf16len);
+        } else {
+            int len = Math.min(mBuffer.remaining(), utf16len * 3 + 1);
+            byte[] bytes = mDecoder.scratch(len);
+            mBuffer.get(bytes, 0, len);
+            str = mDecoder.decode(bytes, 0, len, utf16len);
+        }
+
+        mBuffer.position(start + mDecoder.byteLength());
+        return str;
+    }
+}
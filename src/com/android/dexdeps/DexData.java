@@ -18,29 +18,85 @@ package com.android.dexdeps;
 
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Data extracted from a DEX file.
  */
 public class DexData {
-    private RandomAccessFile mDexFile;
+    /** Size of the header_item; all that loadHeader() reads. */
+    public static final int HEADER_SIZE = 0x70;
+
+    /* columns of getDeclaredCountsByType() */
+    public static final int STATIC_FIELDS = 0;
+    public static final int INSTANCE_FIELDS = 1;
+    public static final int DIRECT_METHODS = 2;
+    public static final int VIRTUAL_METHODS = 3;
+
+    /** Class defs below this many are decoded on the calling thread. */
+    private static final int CLASS_DATA_CHUNK = 1024;
+
+    /** Fewest strings decodeNames() hands to a task of their own. */
+    private static final int STRINGS_PER_TASK = 4096;
+
+    /* seeds that keep field and method fingerprints apart */
+    private static final long FIELD_SEED = 0x6669656c64L;     // "field"
+    private static final long METHOD_SEED = 0x6d6574686f64L;  // "method"
+
+    private DexSource mSource;
     private HeaderItem mHeaderItem;
-    private String[] mStrings;              // strings from string_data_*
-    private TypeIdItem[] mTypeIds;
-    private ProtoIdItem[] mProtoIds;
-    private FieldIdItem[] mFieldIds;
-    private MethodIdItem[] mMethodIds;
-    private ClassDefItem[] mClassDefs;
+    private int[] mStringOffsets;           // string_ids: offset of string_data
+    private String[] mStrings;              // decoded on demand, see string()
+    private long[] mStringHashes;           // 64-bit string hashes, 0 = not yet
+
+    /*
+     * The id tables are kept as parallel arrays, one per column, rather
+     * than an object per entry; a large dex has several hundred thousand
+     * entries.
+     */
+    private int[] mTypeDescriptorIdx;       // type_ids: index into string_ids
+    private BitSet mInternal;               // type_ids: defined within this DEX?
+    private int[] mProtoReturnTypeIdx;      // proto_ids: index into type_ids
+    private int[] mProtoParamsStart;        // proto_ids: start in mProtoParams,
+                                            //   with one extra end entry
+    private int[] mProtoParams;             // all proto type lists, back to back
+    private int[] mFieldClassIdx;           // field_ids: defining class type
+    private int[] mFieldTypeIdx;            // field_ids: field type
+    private int[] mFieldNameIdx;            // field_ids: index into string_ids
+    private int[] mMethodClassIdx;          // method_ids: defining class type
+    private int[] mMethodProtoIdx;          // method_ids: index into proto_ids
+    private int[] mMethodNameIdx;           // method_ids: index into string_ids
+    private int[] mClassDefClassIdx;        // class_defs: index into type_ids
+
+    /**
+     * Constructs a new DexData for this file.  The file is memory-mapped;
+     * it may be closed once load() returns.
+     */
+    public DexData(RandomAccessFile raf) throws IOException {
+        this(DexSource.map(raf));
+    }
 
-    private byte tmpBuf[] = new byte[4];
-    private boolean isBigEndian = false;
+    /**
+     * Constructs a new DexData over the remaining bytes of the buffer,
+     * e.g. a dex inflated from a zip entry.
+     */
+    public DexData(ByteBuffer buffer) {
+        this(DexSource.of(buffer));
+    }
 
     /**
-     * Constructs a new DexData for this file.
+     * Constructs a new DexData that reads from the given source.  Strings
+     * are decoded lazily, so the source has to stay readable for as long
+     * as this DexData is queried.  Not safe for use by several threads.
      */
-    public DexData(RandomAccessFile raf) {
-        mDexFile = raf;
+    public DexData(DexSource source) {
+        mSource = source;
     }
 
     /**
@@ -50,16 +106,130 @@ public class DexData {
      * @throws DexDataException if the DEX contents look bad
      */
     public void load() throws IOException {
-        parseHeaderItem();
+        load(null);
+    }
+
+    /**
+     * The steps of load(), in order.
+     */
+    public enum Phase {
+        HEADER, STRINGS, TYPE_IDS, PROTO_IDS, FIELD_IDS, METHOD_IDS, CLASS_DEFS, INTERNAL
+    }
+
+    /**
+     * Told as load() goes through its phases, e.g. to time them.  Both
+     * calls are made on the loading thread.
+     */
+    public interface LoadListener {
+        void phaseStarted(Phase phase);
+
+        void phaseEnded(Phase phase);
+    }
+
+    /**
+     * Like load(), reporting each phase to the listener, if not null.
+     */
+    public void load(LoadListener listener) throws IOException {
+        for (Phase phase : Phase.values()) {
+            if (listener != null) {
+                listener.phaseStarted(phase);
+            }
+            switch (phase) {
+                case HEADER:
+                    parseHeaderItem();
+                    break;
+                case STRINGS:
+                    loadStrings();
+                    break;
+                case TYPE_IDS:
+                    loadTypeIds();
+                    break;
+                case PROTO_IDS:
+                    loadProtoIds();
+                    break;
+                case FIELD_IDS:
+                    loadFieldIds();
+                    break;
+                case METHOD_IDS:
+                    loadMethodIds();
+                    break;
+                case CLASS_DEFS:
+                    loadClassDefs();
+                    break;
+                case INTERNAL:
+                    markInternalClasses();
+                    break;
+            }
+            if (listener != null) {
+                listener.phaseEnded(phase);
+            }
+        }
+    }
 
-        loadStrings();
-        loadTypeIds();
-        loadProtoIds();
-        loadFieldIds();
-        loadMethodIds();
-        loadClassDefs();
+    /**
+     * Loads only what counting members by class needs, keeping memory to
+     * a few ints per type: type_ids and which types are internal.  The
+     * field_ids and method_ids class columns are counted straight from
+     * the source by getFieldCountsByType() and getMethodCountsByType(),
+     * and descriptors are decoded each time they are asked for rather
+     * than kept.  Only the header getters, getTypeDescriptor(),
+     * isInternalType() and the two counts work after this.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if the DEX contents look bad
+     */
+    public void loadCountsOnly(LoadListener listener) throws IOException {
+        for (Phase phase : new Phase[] { Phase.HEADER, Phase.TYPE_IDS, Phase.CLASS_DEFS,
+                Phase.INTERNAL }) {
+            if (listener != null) {
+                listener.phaseStarted(phase);
+            }
+            switch (phase) {
+                case HEADER:
+                    parseHeaderItem();
+                    mStringOffsets = null;
+                    mStrings = null;
+                    mFieldClassIdx = null;
+                    mMethodClassIdx = null;
+                    break;
+                case TYPE_IDS:
+                    loadTypeIds();
+                    break;
+                case CLASS_DEFS:
+                    // only the class_idx column, straight into mInternal
+                    for (int i = 0; i < mHeaderItem.classDefsSize; i++) {
+                        seek(mHeaderItem.classDefsOff + i * 32);
+                        mInternal.set(readInt());
+                    }
+                    mClassDefClassIdx = null;
+                    break;
+                case INTERNAL:
+                    for (int i = 0; i < mTypeDescriptorIdx.length; i++) {
+                        seek(stringOffset(mTypeDescriptorIdx[i]));
+                        int utf16len = readUnsignedLeb128();
+                        if (utf16len == 1 || readByte() == '[') {
+                            mInternal.set(i);
+                        }
+                    }
+                    break;
+                default:
+                    break;
+            }
+            if (listener != null) {
+                listener.phaseEnded(phase);
+            }
+        }
+    }
 
-        markInternalClasses();
+    /**
+     * Loads only the header, which is enough for the id table sizes.
+     * The source need not hold more than HEADER_SIZE bytes.
+     *
+     * @throws IOException if we encounter a problem while reading
+     * @throws DexDataException if the DEX contents look bad
+     */
+    public void loadHeader() throws IOException {
+        parseHeaderItem();
     }
 
     /**
@@ -96,14 +266,17 @@ public class DexData {
             /* do nothing */
         } else if (mHeaderItem.endianTag == HeaderItem.REVERSE_ENDIAN_CONSTANT){
             /* file is big-endian (!), reverse future reads */
-            isBigEndian = true;
+            mSource.order(ByteOrder.BIG_ENDIAN);
         } else {
             System.err.println("Endian constant has unexpected value " +
                 Integer.toHexString(mHeaderItem.endianTag));
             throw new DexDataException();
         }
 
-        seek(8+4+20);  // magic, checksum, signature
+        seek(8);  // magic
+        mHeaderItem.checksum = readInt();
+        mHeaderItem.signature = new byte[20];
+        readBytes(mHeaderItem.signature);
         mHeaderItem.fileSize = readInt();
         mHeaderItem.headerSize = readInt();
         /*mHeaderItem.endianTag =*/ readInt();
@@ -129,29 +302,20 @@ public class DexData {
     /**
      * Loads the string table out of the DEX.
      *
-     * First we read all of the string_id_items, then we read all of the
-     * string_data_item.  Doing it this way should allow us to avoid
-     * seeking around in the file.
+     * Only the string_id_items are read here.  Most strings are constants
+     * from code that we never look at, so each string_data_item is decoded
+     * the first time string() asks for it.
      */
     void loadStrings() throws IOException {
         int count = mHeaderItem.stringIdsSize;
-        int stringOffsets[] = new int[count];
-
-        //System.out.println("reading " + count + " strings");
+        mStringOffsets = new int[count];
 
         seek(mHeaderItem.stringIdsOff);
         for (int i = 0; i < count; i++) {
-            stringOffsets[i] = readInt();
+            mStringOffsets[i] = readInt();
         }
 
         mStrings = new String[count];
-
-        seek(stringOffsets[0]);
-        for (int i = 0; i < count; i++) {
-            seek(stringOffsets[i]);         // should be a no-op
-            mStrings[i] = readString();
-            //System.out.println("STR: " + i + ": " + mStrings[i]);
-        }
     }
 
     /**
@@ -159,63 +323,63 @@ public class DexData {
      */
     void loadTypeIds() throws IOException {
         int count = mHeaderItem.typeIdsSize;
-        mTypeIds = new TypeIdItem[count];
+        mTypeDescriptorIdx = new int[count];
+        mInternal = new BitSet(count);
 
-        //System.out.println("reading " + count + " typeIds");
         seek(mHeaderItem.typeIdsOff);
         for (int i = 0; i < count; i++) {
-            mTypeIds[i] = new TypeIdItem();
-            mTypeIds[i].descriptorIdx = readInt();
-
-            //System.out.println(i + ": " + mTypeIds[i].descriptorIdx +
-            //    " " + mStrings[mTypeIds[i].descriptorIdx]);
+            mTypeDescriptorIdx[i] = readInt();
         }
     }
 
     /**
      * Loads the proto ID list.
+     *
+     * The parameter type lists are flattened into one pool; proto i owns
+     * mProtoParams[mProtoParamsStart[i] .. mProtoParamsStart[i+1]).
      */
     void loadProtoIds() throws IOException {
         int count = mHeaderItem.protoIdsSize;
-        mProtoIds = new ProtoIdItem[count];
+        int[] parametersOff = new int[count];
+        mProtoReturnTypeIdx = new int[count];
+        mProtoParamsStart = new int[count + 1];
 
-        //System.out.println("reading " + count + " protoIds");
         seek(mHeaderItem.protoIdsOff);
 
         /*
          * Read the proto ID items.
          */
         for (int i = 0; i < count; i++) {
-            mProtoIds[i] = new ProtoIdItem();
-            mProtoIds[i].shortyIdx = readInt();
-            mProtoIds[i].returnTypeIdx = readInt();
-            mProtoIds[i].parametersOff = readInt();
-
-            //System.out.println(i + ": " + mProtoIds[i].shortyIdx +
-            //    " " + mStrings[mProtoIds[i].shortyIdx]);
+            /* shorty_idx = */ readInt();
+            mProtoReturnTypeIdx[i] = readInt();
+            parametersOff[i] = readInt();
         }
 
         /*
          * Go back through and read the type lists.
          */
+        int[] params = new int[Math.max(16, count * 2)];
+        int used = 0;
         for (int i = 0; i < count; i++) {
-            ProtoIdItem protoId = mProtoIds[i];
-
-            int offset = protoId.parametersOff;
+            mProtoParamsStart[i] = used;
 
+            int offset = parametersOff[i];
             if (offset == 0) {
-                protoId.types = new int[0];
                 continue;
-            } else {
-                seek(offset);
-                int size = readInt();       // #of entries in list
-                protoId.types = new int[size];
+            }
 
-                for (int j = 0; j < size; j++) {
-                    protoId.types[j] = readShort() & 0xffff;
-                }
+            seek(offset);
+            int size = readInt();       // #of entries in list
+            if (used + size > params.length) {
+                params = Arrays.copyOf(params,
+                        Math.max(params.length * 2, used + size));
+            }
+            for (int j = 0; j < size; j++) {
+                params[used++] = readShort() & 0xffff;
             }
         }
+        mProtoParamsStart[count] = used;
+        mProtoParams = Arrays.copyOf(params, used);
     }
 
     /**
@@ -223,18 +387,15 @@ public class DexData {
      */
     void loadFieldIds() throws IOException {
         int count = mHeaderItem.fieldIdsSize;
-        mFieldIds = new FieldIdItem[count];
+        mFieldClassIdx = new int[count];
+        mFieldTypeIdx = new int[count];
+        mFieldNameIdx = new int[count];
 
-        //System.out.println("reading " + count + " fieldIds");
         seek(mHeaderItem.fieldIdsOff);
         for (int i = 0; i < count; i++) {
-            mFieldIds[i] = new FieldIdItem();
-            mFieldIds[i].classIdx = readShort() & 0xffff;
-            mFieldIds[i].typeIdx = readShort() & 0xffff;
-            mFieldIds[i].nameIdx = readInt();
-
-            //System.out.println(i + ": " + mFieldIds[i].nameIdx +
-            //    " " + mStrings[mFieldIds[i].nameIdx]);
+            mFieldClassIdx[i] = readShort() & 0xffff;
+            mFieldTypeIdx[i] = readShort() & 0xffff;
+            mFieldNameIdx[i] = readInt();
         }
     }
 
@@ -243,18 +404,15 @@ public class DexData {
      */
     void loadMethodIds() throws IOException {
         int count = mHeaderItem.methodIdsSize;
-        mMethodIds = new MethodIdItem[count];
+        mMethodClassIdx = new int[count];
+        mMethodProtoIdx = new int[count];
+        mMethodNameIdx = new int[count];
 
-        //System.out.println("reading " + count + " methodIds");
         seek(mHeaderItem.methodIdsOff);
         for (int i = 0; i < count; i++) {
-            mMethodIds[i] = new MethodIdItem();
-            mMethodIds[i].classIdx = readShort() & 0xffff;
-            mMethodIds[i].protoIdx = readShort() & 0xffff;
-            mMethodIds[i].nameIdx = readInt();
-
-            //System.out.println(i + ": " + mMethodIds[i].nameIdx +
-            //    " " + mStrings[mMethodIds[i].nameIdx]);
+            mMethodClassIdx[i] = readShort() & 0xffff;
+            mMethodProtoIdx[i] = readShort() & 0xffff;
+            mMethodNameIdx[i] = readInt();
         }
     }
 
@@ -263,13 +421,11 @@ public class DexData {
      */
     void loadClassDefs() throws IOException {
         int count = mHeaderItem.classDefsSize;
-        mClassDefs = new ClassDefItem[count];
+        mClassDefClassIdx = new int[count];
 
-        //System.out.println("reading " + count + " classDefs");
         seek(mHeaderItem.classDefsOff);
         for (int i = 0; i < count; i++) {
-            mClassDefs[i] = new ClassDefItem();
-            mClassDefs[i].classIdx = readInt();
+            mClassDefClassIdx[i] = readInt();
 
             /* access_flags = */ readInt();
             /* superclass_idx = */ readInt();
@@ -278,9 +434,6 @@ public class DexData {
             /* annotations_off = */ readInt();
             /* class_data_off = */ readInt();
             /* static_values_off = */ readInt();
-
-            //System.out.println(i + ": " + mClassDefs[i].classIdx + " " +
-            //    mStrings[mTypeIds[mClassDefs[i].classIdx].descriptorIdx]);
         }
     }
 
@@ -288,24 +441,25 @@ public class DexData {
      * Sets the "internal" flag on type IDs which are defined in the
      * DEX file or within the VM (e.g. primitive classes and arrays).
      */
-    void markInternalClasses() {
-        for (int i = mClassDefs.length -1; i >= 0; i--) {
-            mTypeIds[mClassDefs[i].classIdx].internal = true;
+    void markInternalClasses() throws IOException {
+        for (int i = mClassDefClassIdx.length -1; i >= 0; i--) {
+            mInternal.set(mClassDefClassIdx[i]);
         }
 
-        for (int i = 0; i < mTypeIds.length; i++) {
-            String className = mStrings[mTypeIds[i].descriptorIdx];
+        /*
+         * Peek at the raw string_data_item rather than decoding every
+         * descriptor: we only need its length and first character.
+         */
+        for (int i = 0; i < mTypeDescriptorIdx.length; i++) {
+            seek(mStringOffsets[mTypeDescriptorIdx[i]]);
+            int utf16len = readUnsignedLeb128();
 
-            if (className.length() == 1) {
+            if (utf16len == 1) {
                 // primitive class
-                mTypeIds[i].internal = true;
-            } else if (className.charAt(0) == '[') {
-                mTypeIds[i].internal = true;
+                mInternal.set(i);
+            } else if (readByte() == '[') {
+                mInternal.set(i);
             }
-
-            //System.out.println(i + " " +
-            //    (mTypeIds[i].internal ? "INTERNAL" : "external") + " - " +
-            //    mStrings[mTypeIds[i].descriptorIdx]);
         }
     }
 
@@ -316,11 +470,483 @@ public class DexData {
      * =======================================================================
      */
 
+    /**
+     * Returns the SHA-1 signature of the file past the signature field,
+     * as recorded in the header.  Two DEX files with the same signature
+     * can be taken to have the same contents.
+     */
+    public byte[] getSignature() {
+        return mHeaderItem.signature.clone();
+    }
+
+    /**
+     * Returns the number of entries in the string_ids table.
+     */
+    public int getStringIdsSize() {
+        return mHeaderItem.stringIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the type_ids table.
+     */
+    public int getTypeIdsSize() {
+        return mHeaderItem.typeIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the proto_ids table.
+     */
+    public int getProtoIdsSize() {
+        return mHeaderItem.protoIdsSize;
+    }
+
+    /**
+     * Returns the size of the DEX file, as recorded in the header.
+     */
+    public int getFileSize() {
+        return mHeaderItem.fileSize;
+    }
+
+    /**
+     * Returns the number of entries in the field_ids table.
+     */
+    public int getFieldIdsSize() {
+        return mHeaderItem.fieldIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the method_ids table.
+     */
+    public int getMethodIdsSize() {
+        return mHeaderItem.methodIdsSize;
+    }
+
+    /**
+     * Returns the number of entries in the class_defs table.
+     */
+    public int getClassDefsSize() {
+        return mHeaderItem.classDefsSize;
+    }
+
+    /**
+     * Returns the type descriptor, e.g. "Ljava/lang/String;", given an
+     * index into the type_ids table.
+     */
+    public String getTypeDescriptor(int typeIdx) {
+        return classNameFromTypeIndex(typeIdx);
+    }
+
+    /**
+     * Returns true if the type, given an index into the type_ids table, is
+     * defined in this DEX file or within the VM (primitives and arrays).
+     */
+    public boolean isInternalType(int typeIdx) {
+        return mInternal.get(typeIdx);
+    }
+
+    /**
+     * Returns the number of field_ids each class defines, indexed by
+     * type_ids index.
+     */
+    public int[] getFieldCountsByType() {
+        if (mFieldClassIdx == null) {
+            return countByClass(mHeaderItem.fieldIdsOff, mHeaderItem.fieldIdsSize);
+        }
+        return countByClass(mFieldClassIdx);
+    }
+
+    /**
+     * Returns the number of method_ids each class defines, indexed by
+     * type_ids index.
+     */
+    public int[] getMethodCountsByType() {
+        if (mMethodClassIdx == null) {
+            return countByClass(mHeaderItem.methodIdsOff, mHeaderItem.methodIdsSize);
+        }
+        return countByClass(mMethodClassIdx);
+    }
+
+    /**
+     * Counts the entries per defining class of a field_ids or method_ids
+     * class column.  Both tables are sorted by defining class, so we step
+     * through a run of equal indices at a time.
+     */
+    private int[] countByClass(int[] classIdx) {
+        int[] counts = new int[mTypeDescriptorIdx.length];
+        int i = 0;
+        while (i < classIdx.length) {
+            int cls = classIdx[i];
+            int end = i + 1;
+            while (end < classIdx.length && classIdx[end] == cls) {
+                end++;
+            }
+            counts[cls] += end - i;
+            i = end;
+        }
+        return counts;
+    }
+
+    /**
+     * Like countByClass(int[]), reading the u2 class_idx of each 8-byte
+     * field_id_item or method_id_item from the source, after loadCountsOnly().
+     */
+    private int[] countByClass(int tableOff, int count) {
+        int[] counts = new int[mTypeDescriptorIdx.length];
+        try {
+            for (int i = 0; i < count; i++) {
+                seek(tableOff + i * 8);
+                counts[readShort() & 0xffff]++;
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to read id table: " + ioe);
+            throw new DexDataException();
+        }
+        return counts;
+    }
+
+    /**
+     * Picks the classes getDeclaredCountsByType() decodes.
+     */
+    public interface ClassFilter {
+        boolean accept(int typeIdx);
+    }
+
+    /**
+     * Returns the static fields, instance fields, direct methods and
+     * virtual methods each class declares in its class_data_item, indexed
+     * by column (STATIC_FIELDS etc.) and then by type_ids index.  Unlike
+     * the id tables, these leave out members that are only referenced.
+     *
+     * Only the four sizes at the start of each class_data_item are read.
+     * Classes the filter turns down, if there is one, are skipped without
+     * reading their class data.  With a pool the remaining classes are
+     * decoded in chunks across it, each chunk reading through its own
+     * view of the source.  Works after load() or loadCountsOnly().
+     */
+    public int[][] getDeclaredCountsByType(ClassFilter filter, ForkJoinPool pool) {
+        int count = mHeaderItem.classDefsSize;
+        int[] classIdx = new int[count];
+        int[] classDataOff = new int[count];
+        int selected = 0;
+        try {
+            for (int i = 0; i < count; i++) {
+                seek(mHeaderItem.classDefsOff + i * 32);
+                int cls = readInt();
+                seek(mHeaderItem.classDefsOff + i * 32 + 24);
+                int off = readInt();
+                // a class without fields or methods has no class data
+                if (off != 0 && (filter == null || filter.accept(cls))) {
+                    classIdx[selected] = cls;
+                    classDataOff[selected] = off;
+                    selected++;
+                }
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to read class defs: " + ioe);
+            throw new DexDataException();
+        }
+
+        int[][] counts = new int[4][mHeaderItem.typeIdsSize];
+        ClassDataTask task = new ClassDataTask(counts, classIdx, classDataOff, 0, selected);
+        if (pool == null || selected <= CLASS_DATA_CHUNK || mSource.duplicate() == null) {
+            task.decode(mSource);
+        } else if (ForkJoinTask.getPool() == pool) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+        return counts;
+    }
+
+    /**
+     * Reads the sizes of a range of class_data_items, halving the range
+     * until it is down to a chunk.  Each class def defines a different
+     * type, so tasks never write the same counts.
+     */
+    @SuppressWarnings("serial")   // never serialized
+    private final class ClassDataTask extends RecursiveAction {
+        private final int[][] counts;
+        private final int[] classIdx;
+        private final int[] classDataOff;
+        private final int from, to;
+
+        ClassDataTask(int[][] counts, int[] classIdx, int[] classDataOff, int from, int to) {
+            this.counts = counts;
+            this.classIdx = classIdx;
+            this.classDataOff = classDataOff;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CLASS_DATA_CHUNK) {
+                decode(mSource.duplicate());
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ClassDataTask(counts, classIdx, classDataOff, from, mid),
+                    new ClassDataTask(counts, classIdx, classDataOff, mid, to));
+        }
+
+        void decode(DexSource source) {
+            try {
+                for (int i = from; i < to; i++) {
+                    int cls = classIdx[i];
+                    source.seek(classDataOff[i]);
+                    counts[STATIC_FIELDS][cls] = source.readUnsignedLeb128();
+                    counts[INSTANCE_FIELDS][cls] = source.readUnsignedLeb128();
+                    counts[DIRECT_METHODS][cls] = source.readUnsignedLeb128();
+                    counts[VIRTUAL_METHODS][cls] = source.readUnsignedLeb128();
+                }
+            } catch (IOException ioe) {
+                System.err.println("Unable to read class data: " + ioe);
+                throw new DexDataException();
+            }
+        }
+    }
+
+    /**
+     * Returns the type_ids index of a field's defining class.
+     */
+    public int getFieldClassIndex(int fieldIdx) {
+        return mFieldClassIdx[fieldIdx];
+    }
+
+    /**
+     * Returns the type_ids index of a method's defining class.
+     */
+    public int getMethodClassIndex(int methodIdx) {
+        return mMethodClassIdx[methodIdx];
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of each field_id's signature (defining
+     * class, name and type), indexed like the field_ids table.  Equal
+     * signatures in different DEX files get equal fingerprints.
+     */
+    public long[] getFieldFingerprints() {
+        long[] fingerprints = new long[mFieldClassIdx.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            long h = mix(FIELD_SEED, typeHash(mFieldClassIdx[i]));
+            h = mix(h, stringHash(mFieldNameIdx[i]));
+            fingerprints[i] = mix(h, typeHash(mFieldTypeIdx[i]));
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns a 64-bit fingerprint of each method_id's signature (defining
+     * class, name and prototype), indexed like the method_ids table.
+     */
+    public long[] getMethodFingerprints() {
+        long[] protoHashes = new long[mProtoReturnTypeIdx.length];
+        for (int i = 0; i < protoHashes.length; i++) {
+            long h = typeHash(mProtoReturnTypeIdx[i]);
+            for (int j = mProtoParamsStart[i]; j < mProtoParamsStart[i + 1]; j++) {
+                h = mix(h, typeHash(mProtoParams[j]));
+            }
+            protoHashes[i] = h;
+        }
+
+        long[] fingerprints = new long[mMethodClassIdx.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            long h = mix(METHOD_SEED, typeHash(mMethodClassIdx[i]));
+            h = mix(h, stringHash(mMethodNameIdx[i]));
+            fingerprints[i] = mix(h, protoHashes[mMethodProtoIdx[i]]);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Returns a field's signature, e.g. "Lcom/foo/Bar;->name:I".
+     */
+    public String getFieldSignature(int fieldIdx) {
+        return classNameFromTypeIndex(mFieldClassIdx[fieldIdx]) + "->" +
+                string(mFieldNameIdx[fieldIdx]) + ":" +
+                classNameFromTypeIndex(mFieldTypeIdx[fieldIdx]);
+    }
+
+    /**
+     * Returns a method's signature, e.g. "Lcom/foo/Bar;->name(I)V".
+     */
+    public String getMethodSignature(int methodIdx) {
+        MethodRef ref = methodRef(methodIdx);
+        return ref.getDeclClassName() + "->" + ref.getName() + ref.getDescriptor();
+    }
+
+    private static long mix(long h, long value) {
+        h = (h ^ value) * 0x9e3779b97f4a7c15L;
+        return h ^ (h >>> 29);
+    }
+
+    private long typeHash(int typeIdx) {
+        return stringHash(mTypeDescriptorIdx[typeIdx]);
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of a string's characters, cached.
+     */
+    private long stringHash(int idx) {
+        if (mStringHashes == null) {
+            mStringHashes = new long[mStrings.length];
+        }
+        long h = mStringHashes[idx];
+        if (h == 0) {
+            String str = string(idx);
+            h = 0xcbf29ce484222325L;
+            for (int i = 0; i < str.length(); i++) {
+                h = (h ^ str.charAt(i)) * 0x100000001b3L;
+            }
+            if (h == 0) {
+                h = 1;
+            }
+            mStringHashes[idx] = h;
+        }
+        return h;
+    }
+
+    /**
+     * Decodes the strings that name types, fields and methods, into the
+     * same cache string() fills one at a time, for when most of them will
+     * be needed, e.g. by the fingerprints or the ref builders.  The rest
+     * of the table, mostly constants from code, is left for string().
+     *
+     * With a pool, and enough names, they are split into contiguous ranges
+     * of the table, each decoded through its own view of the source.  A
+     * small table, or a single core, is decoded on this thread instead.
+     * Needs load().
+     */
+    public void decodeNames(ForkJoinPool pool) {
+        int[][] columns = { mTypeDescriptorIdx, mFieldNameIdx, mMethodNameIdx };
+        int cores = pool == null ? 1 :
+                Math.min(pool.getParallelism(), Runtime.getRuntime().availableProcessors());
+        // no more names than either strings or entries naming them
+        int names = Math.min(mStrings.length,
+                columns[0].length + columns[1].length + columns[2].length);
+        int tasks = cores < 2 ? 1 : Math.min(cores * 4, names / STRINGS_PER_TASK);
+        if (tasks <= 1 || mSource.duplicate() == null) {
+            for (int[] column : columns) {
+                for (int idx : column) {
+                    string(idx);
+                }
+            }
+            return;
+        }
+
+        // each name once and in table order, so the ranges don't overlap
+        BitSet used = new BitSet(mStrings.length);
+        for (int[] column : columns) {
+            for (int idx : column) {
+                used.set(idx);
+            }
+        }
+        int[] indices = new int[used.cardinality()];
+        for (int i = 0, idx = used.nextSetBit(0); idx >= 0; idx = used.nextSetBit(idx + 1)) {
+            indices[i++] = idx;
+        }
+
+        StringTask task = new StringTask(indices, 0, indices.length, tasks);
+        if (ForkJoinTask.getPool() == pool) {
+            task.invoke();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * Decodes a range of the given string indices as the given number of
+     * tasks, halving both until each task has one range.  Ranges don't
+     * overlap, so each slot of mStrings is written by one task only.
+     */
+    @SuppressWarnings("serial")   // never serialized
+    private final class StringTask extends RecursiveAction {
+        private final int[] indices;
+        private final int from, to;
+        private final int tasks;
+
+        StringTask(int[] indices, int from, int to, int tasks) {
+            this.indices = indices;
+            this.from = from;
+            this.to = to;
+            this.tasks = tasks;
+        }
+
+        @Override
+        protected void compute() {
+            if (tasks == 1) {
+                decode(mSource.duplicate());
+                return;
+            }
+            int half = tasks >>> 1;
+            int mid = from + (int) ((long) (to - from) * half / tasks);
+            invokeAll(new StringTask(indices, from, mid, half),
+                    new StringTask(indices, mid, to, tasks - half));
+        }
+
+        private void decode(DexSource source) {
+            int idx = -1;
+            try {
+                for (int i = from; i < to; i++) {
+                    idx = indices[i];
+                    if (mStrings[idx] == null) {
+                        source.seek(mStringOffsets[idx]);
+                        mStrings[idx] = source.readString();
+                    }
+                }
+            } catch (IOException ioe) {
+                System.err.println("Unable to read string " + idx + ": " + ioe);
+                throw new DexDataException();
+            }
+        }
+    }
+
+    /**
+     * Returns a string, given an index into the string_ids table.  The
+     * string is decoded on first use and cached.
+     */
+    private String string(int idx) {
+        if (mStrings == null) {
+            // loadCountsOnly(): decode every time, keep nothing
+            try {
+                seek(stringOffset(idx));
+                return readString();
+            } catch (IOException ioe) {
+                System.err.println("Unable to read string " + idx + ": " + ioe);
+                throw new DexDataException();
+            }
+        }
+        String str = mStrings[idx];
+        if (str == null) {
+            try {
+                seek(mStringOffsets[idx]);
+                str = readString();
+            } catch (IOException ioe) {
+                System.err.println("Unable to read string " + idx + ": " + ioe);
+                throw new DexDataException();
+            }
+            mStrings[idx] = str;
+        }
+        return str;
+    }
+
+    /**
+     * Returns the offset of a string_data_item, from mStringOffsets or,
+     * when those weren't loaded, from the string_ids table itself.
+     */
+    private int stringOffset(int idx) throws IOException {
+        if (mStringOffsets != null) {
+            return mStringOffsets[idx];
+        }
+        seek(mHeaderItem.stringIdsOff + idx * 4);
+        return readInt();
+    }
+
     /**
      * Returns the class name, given an index into the type_ids table.
      */
     private String classNameFromTypeIndex(int idx) {
-        return mStrings[mTypeIds[idx].descriptorIdx];
+        return string(mTypeDescriptorIdx[idx]);
     }
 
     /**
@@ -328,11 +954,11 @@ public class DexData {
      * into the proto_ids table.
      */
     private String[] argArrayFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        String[] result = new String[protoId.types.length];
+        int start = mProtoParamsStart[idx];
+        String[] result = new String[mProtoParamsStart[idx + 1] - start];
 
-        for (int i = 0; i < protoId.types.length; i++) {
-            result[i] = mStrings[mTypeIds[protoId.types[i]].descriptorIdx];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = classNameFromTypeIndex(mProtoParams[start + i]);
         }
 
         return result;
@@ -343,8 +969,7 @@ public class DexData {
      * index into the proto_ids table.
      */
     private String returnTypeFromProtoIndex(int idx) {
-        ProtoIdItem protoId = mProtoIds[idx];
-        return mStrings[mTypeIds[protoId.returnTypeIdx].descriptorIdx];
+        return classNameFromTypeIndex(mProtoReturnTypeIdx[idx]);
     }
 
     /**
@@ -354,17 +979,17 @@ public class DexData {
      * that class.
      */
     public ClassRef[] getExternalReferences() {
-        // create a sparse array of ClassRef that parallels mTypeIds
-        ClassRef[] sparseRefs = new ClassRef[mTypeIds.length];
+        int typeCount = mTypeDescriptorIdx.length;
+
+        // create a sparse array of ClassRef that parallels the type_ids
+        ClassRef[] sparseRefs = new ClassRef[typeCount];
 
         // create entries for all externally-referenced classes
         int count = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
-            if (!mTypeIds[i].internal) {
-                sparseRefs[i] =
-                    new ClassRef(mStrings[mTypeIds[i].descriptorIdx]);
-                count++;
-            }
+        for (int i = mInternal.nextClearBit(0); i < typeCount;
+                i = mInternal.nextClearBit(i + 1)) {
+            sparseRefs[i] = new ClassRef(classNameFromTypeIndex(i));
+            count++;
         }
 
         // add fields and methods to the appropriate class entry
@@ -374,7 +999,7 @@ public class DexData {
         // crunch out the sparseness
         ClassRef[] classRefs = new ClassRef[count];
         int idx = 0;
-        for (int i = 0; i < mTypeIds.length; i++) {
+        for (int i = 0; i < typeCount; i++) {
             if (sparseRefs[i] != null)
                 classRefs[idx++] = sparseRefs[i];
         }
@@ -389,14 +1014,10 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalFieldReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mFieldIds.length; i++) {
-            if (!mTypeIds[mFieldIds[i].classIdx].internal) {
-                FieldIdItem fieldId = mFieldIds[i];
-                FieldRef newFieldRef = new FieldRef(
-                        classNameFromTypeIndex(fieldId.classIdx),
-                        classNameFromTypeIndex(fieldId.typeIdx),
-                        mStrings[fieldId.nameIdx]);
-                sparseRefs[mFieldIds[i].classIdx].addField(newFieldRef);
+        for (int i = 0; i < mFieldClassIdx.length; i++) {
+            int classIdx = mFieldClassIdx[i];
+            if (!mInternal.get(classIdx)) {
+                sparseRefs[classIdx].addField(fieldRef(i));
             }
         }
     }
@@ -406,15 +1027,10 @@ public class DexData {
      * references into the appropriate ClassRef.
      */
     private void addExternalMethodReferences(ClassRef[] sparseRefs) {
-        for (int i = 0; i < mMethodIds.length; i++) {
-            if (!mTypeIds[mMethodIds[i].classIdx].internal) {
-                MethodIdItem methodId = mMethodIds[i];
-                MethodRef newMethodRef = new MethodRef(
-                        classNameFromTypeIndex(methodId.classIdx),
-                        argArrayFromProtoIndex(methodId.protoIdx),
-                        returnTypeFromProtoIndex(methodId.protoIdx),
-                        mStrings[methodId.nameIdx]);
-                sparseRefs[mMethodIds[i].classIdx].addMethod(newMethodRef);
+        for (int i = 0; i < mMethodClassIdx.length; i++) {
+            int classIdx = mMethodClassIdx[i];
+            if (!mInternal.get(classIdx)) {
+                sparseRefs[classIdx].addMethod(methodRef(i));
             }
         }
     }
@@ -423,30 +1039,43 @@ public class DexData {
      * Returns the list of all method references.
      */
     public MethodRef[] getMethodRefs() {
-        MethodRef[] methodRefs = new MethodRef[mMethodIds.length];
-        for (int i = 0; i < mMethodIds.length; i++) {
-            MethodIdItem methodId = mMethodIds[i];
-            methodRefs[i] = new MethodRef(
-                    classNameFromTypeIndex(methodId.classIdx),
-                    argArrayFromProtoIndex(methodId.protoIdx),
-                    returnTypeFromProtoIndex(methodId.protoIdx),
-                    mStrings[methodId.nameIdx]);
+        MethodRef[] methodRefs = new MethodRef[mMethodClassIdx.length];
+        for (int i = 0; i < methodRefs.length; i++) {
+            methodRefs[i] = methodRef(i);
         }
         return methodRefs;
     }
 
     public FieldRef[] getFieldRefs() {
-        FieldRef[] fieldRefs = new FieldRef[mFieldIds.length];
-        for (int i = 0; i < mFieldIds.length; i++) {
-            FieldIdItem fieldId = mFieldIds[i];
-            fieldRefs[i] = new FieldRef(
-                    classNameFromTypeIndex(fieldId.classIdx),
-                    classNameFromTypeIndex(fieldId.typeIdx),
-                    mStrings[fieldId.nameIdx]);
+        FieldRef[] fieldRefs = new FieldRef[mFieldClassIdx.length];
+        for (int i = 0; i < fieldRefs.length; i++) {
+            fieldRefs[i] = fieldRef(i);
         }
         return fieldRefs;
     }
 
+    /**
+     * Builds a MethodRef, given an index into the method_ids table.
+     */
+    private MethodRef methodRef(int idx) {
+        int protoIdx = mMethodProtoIdx[idx];
+        return new MethodRef(
+                classNameFromTypeIndex(mMethodClassIdx[idx]),
+                argArrayFromProtoIndex(protoIdx),
+                returnTypeFromProtoIndex(protoIdx),
+                string(mMethodNameIdx[idx]));
+    }
+
+    /**
+     * Builds a FieldRef, given an index into the field_ids table.
+     */
+    private FieldRef fieldRef(int idx) {
+        return new FieldRef(
+                classNameFromTypeIndex(mFieldClassIdx[idx]),
+                classNameFromTypeIndex(mFieldTypeIdx[idx]),
+                string(mFieldNameIdx[idx]));
+    }
+
     /*
      * =======================================================================
      *      Basic I/O functions
@@ -457,90 +1086,49 @@ public class DexData {
      * Seeks the DEX file to the specified absolute position.
      */
     void seek(int position) throws IOException {
-        mDexFile.seek(position);
+        mSource.seek(position);
     }
 
     /**
      * Fills the buffer by reading bytes from the DEX file.
      */
     void readBytes(byte[] buffer) throws IOException {
-        mDexFile.readFully(buffer);
+        mSource.readBytes(buffer);
     }
 
     /**
      * Reads a single signed byte value.
      */
     byte readByte() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 1);
-        return tmpBuf[0];
+        return mSource.readByte();
     }
 
     /**
      * Reads a signed 16-bit integer, byte-swapping if necessary.
      */
     short readShort() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 2);
-        if (isBigEndian) {
-            return (short) ((tmpBuf[1] & 0xff) | ((tmpBuf[0] & 0xff) << 8));
-        } else {
-            return (short) ((tmpBuf[0] & 0xff) | ((tmpBuf[1] & 0xff) << 8));
-        }
+        return mSource.readShort();
     }
 
     /**
      * Reads a signed 32-bit integer, byte-swapping if necessary.
      */
     int readInt() throws IOException {
-        mDexFile.readFully(tmpBuf, 0, 4);
-
-        if (isBigEndian) {
-            return (tmpBuf[3] & 0xff) | ((tmpBuf[2] & 0xff) << 8) |
-                   ((tmpBuf[1] & 0xff) << 16) | ((tmpBuf[0] & 0xff) << 24);
-        } else {
-            return (tmpBuf[0] & 0xff) | ((tmpBuf[1] & 0xff) << 8) |
-                   ((tmpBuf[2] & 0xff) << 16) | ((tmpBuf[3] & 0xff) << 24);
-        }
+        return mSource.readInt();
     }
 
     /**
-     * Reads a variable-length unsigned LEB128 value.  Does not attempt to
-     * verify that the value is valid.
-     *
-     * @throws EOFException if we run off the end of the file
+     * Reads a variable-length unsigned LEB128 value.
      */
     int readUnsignedLeb128() throws IOException {
-        int result = 0;
-        byte val;
-
-        do {
-            val = readByte();
-            result = (result << 7) | (val & 0x7f);
-        } while (val < 0);
-
-        return result;
+        return mSource.readUnsignedLeb128();
     }
 
     /**
      * Reads a UTF-8 string.
-     *
-     * We don't know how long the UTF-8 string is, so we have to read one
-     * byte at a time.  We could make an educated guess based on the
-     * utf16_size and seek back if we get it wrong, but seeking backward
-     * may cause the underlying implementation to reload I/O buffers.
      */
     String readString() throws IOException {
-        int utf16len = readUnsignedLeb128();
-        byte inBuf[] = new byte[utf16len * 3];      // worst case
-        int idx;
-
-        for (idx = 0; idx < inBuf.length; idx++) {
-            byte val = readByte();
-            if (val == 0)
-                break;
-            inBuf[idx] = val;
-        }
-
-        return new String(inBuf, 0, idx, "UTF-8");
+        return mSource.readString();
     }
 
 
@@ -554,6 +1142,8 @@ public class DexData {
      * Holds the contents of a header_item.
      */
     static class HeaderItem {
+        public int checksum;
+        public byte[] signature;
         public int fileSize;
         public int headerSize;
         public int endianTag;
@@ -572,58 +1162,4 @@ public class DexData {
         public static final int ENDIAN_CONSTANT = 0x12345678;
         public static final int REVERSE_ENDIAN_CONSTANT = 0x78563412;
     }
-
-    /**
-     * Holds the contents of a type_id_item.
-     *
-     * This is chiefly a list of indices into the string table.  We need
-     * some additional bits of data, such as whether or not the type ID
-     * represents a class defined in this DEX, so we use an object for
-     * each instead of a simple integer.  (Could use a parallel array, but
-     * since this is a desktop app it's not essential.)
-     */
-    static class TypeIdItem {
-        public int descriptorIdx;       // index into string_ids
-
-        public boolean internal;        // defined within this DEX file?
-    }
-
-    /**
-     * Holds the contents of a proto_id_item.
-     */
-    static class ProtoIdItem {
-        public int shortyIdx;           // index into string_ids
-        public int returnTypeIdx;       // index into type_ids
-        public int parametersOff;       // file offset to a type_list
-
-        public int types[];             // contents of type list
-    }
-
-    /**
-     * Holds the contents of a field_id_item.
-     */
-    static class FieldIdItem {
-        public int classIdx;            // index into type_ids (defining class)
-        public int typeIdx;             // index into type_ids (field type)
-        public int nameIdx;             // index into string_ids
-    }
-
-    /**
-     * Holds the contents of a method_id_item.
-     */
-    static class MethodIdItem {
-        public int classIdx;            // index into type_ids
-        public int protoIdx;            // index into proto_ids
-        public int nameIdx;             // index into string_ids
-    }
-
-    /**
-     * Holds the contents of a class_def_item.
-     *
-     * We don't really need a class for this, but there's some stuff in
-     * the class_def_item that we might want later.
-     */
-    static class ClassDefItem {
-        public int classIdx;            // index into type_ids
-    }
 }
@@ -0,0 +1,141 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Random-access view of the raw bytes of a DEX file.
+ *
+ * DexData does all of its reading through one of these, so the bytes can
+ * come from a file on disk, a memory mapping or a buffer in the heap.
+ * Multi-byte values are little-endian until {@link #order} is told
+ * otherwise.
+ */
+public abstract class DexSource {
+    final Mutf8Decoder mDecoder = new Mutf8Decoder();
+
+    /**
+     * Returns a source that reads through the file with individual
+     * read calls.  Slow, but never holds more than a few bytes.
+     */
+    public static DexSource of(RandomAccessFile raf) {
+        return new RandomAccessDexSource(raf);
+    }
+
+    /**
+     * Returns a source over the remaining bytes of the buffer.  The
+     * buffer's position, limit and order are left alone.
+     */
+    public static DexSource of(ByteBuffer buffer) {
+        return new BufferDexSource(buffer);
+    }
+
+    /**
+     * Maps the whole file read-only and returns a source over the
+     * mapping.  The mapping stays valid after the file is closed.
+     */
+    public static DexSource map(RandomAccessFile raf) throws IOException {
+        FileChannel channel = raf.getChannel();
+        return new BufferDexSource(
+                channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+    }
+
+    /**
+     * Sets the byte order used by readShort() and readInt().
+     */
+    abstract void order(ByteOrder order);
+
+    /**
+     * Returns a source over the same bytes, in the same order, with a
+     * position of its own, so that another thread can read through it;
+     * or null if this source can't be shared that way.
+     */
+    DexSource duplicate() {
+        return null;
+    }
+
+    /**
+     * Seeks to the specified absolute position.
+     */
+    abstract void seek(int position) throws IOException;
+
+    /**
+     * Fills the buffer with bytes from the current position.
+     */
+    abstract void readBytes(byte[] buffer) throws IOException;
+
+    /**
+     * Reads a single signed byte value.
+     */
+    abstract byte readByte() throws IOException;
+
+    /**
+     * Reads a signed 16-bit integer in the current byte order.
+     */
+    abstract short readShort() throws IOException;
+
+    /**
+     * Reads a signed 32-bit integer in the current byte order.
+     */
+    abstract int readInt() throws IOException;
+
+    /**
+     * Reads a variable-length unsigned LEB128 value.  Does not attempt to
+     * verify that the value is valid.
+     *
+     * @throws EOFException if we run off the end of the file
+     */
+    int readUnsignedLeb128() throws IOException {
+        int result = 0;
+        int shift = 0;
+        byte val;
+
+        do {
+            val = readByte();
+            result |= (val & 0x7f) << shift;
+            shift += 7;
+        } while (val < 0);
+
+        return result;
+    }
+
+    /**
+     * Reads a string_data_item: the utf16_size followed by NUL-terminated
+     * modified UTF-8.
+     *
+     * We don't know how long the encoded string is, so here we have to
+     * read one byte at a time.  Sources that can see their bytes directly
+     * override this.
+     */
+    String readString() throws IOException {
+        int utf16len = readUnsignedLeb128();
+        byte inBuf[] = mDecoder.scratch(utf16len * 3 + 1);      // worst case
+        int idx = 0;
+
+        while (idx < inBuf.length) {
+            byte val = readByte();
+            inBuf[idx++] = val;
+            if (val == 0)
+                break;
+        }
+
+        return mDecoder.decode(inBuf, 0, idx, utf16len);
+    }
+}
@@ -0,0 +1,134 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.dexdeps;
+
+import java.io.UTFDataFormatException;
+import java.nio.charset.Charset;
+
+/**
+ * Decodes the "modified UTF-8" of string_data_items.
+ *
+ * This differs from standard UTF-8 in that NUL is encoded as two bytes
+ * and supplementary characters are encoded as a surrogate pair of
+ * three-byte sequences, so every encoded sequence maps to exactly one
+ * UTF-16 code unit.  One decoder keeps its scratch buffers between calls;
+ * it is not safe for use by several threads.
+ */
+final class Mutf8Decoder {
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    private byte[] mBytes = new byte[256];
+    private char[] mChars = new char[64];
+    private int mByteLength;
+
+    /**
+     * Returns a scratch byte array of at least the given size, for
+     * sources that have to copy string data out before decoding it.
+     * The contents are overwritten by the next call.
+     */
+    byte[] scratch(int size) {
+        if (mBytes.length < size) {
+            mBytes = new byte[Math.max(size, mBytes.length * 2)];
+        }
+        return mBytes;
+    }
+
+    /**
+     * Returns the number of bytes consumed by the last decode(), including
+     * the terminating NUL.
+     */
+    int byteLength() {
+        return mByteLength;
+    }
+
+    /**
+     * Decodes the NUL-terminated string data starting at in[off].
+     *
+     * @param end index just past the last byte we may look at
+     * @param utf16len the utf16_size from the string_data_item
+     * @throws UTFDataFormatException if the data is malformed or not
+     *     terminated before end
+     */
+    String decode(byte[] in, int off, int end, int utf16len)
+            throws UTFDataFormatException {
+        /*
+         * Fast path: nearly every descriptor and member name is ASCII, in
+         * which case the encoded length equals utf16_size and the bytes
+         * are the characters.
+         */
+        int asciiEnd = off + utf16len;
+        if (asciiEnd < end && in[asciiEnd] == 0) {
+            int p = off;
+            while (p < asciiEnd && in[p] > 0) {
+                p++;
+            }
+            if (p == asciiEnd) {
+                mByteLength = utf16len + 1;
+                return new String(in, off, utf16len, ISO_8859_1);
+            }
+        }
+
+        if (mChars.length < utf16len) {
+            mChars = new char[Math.max(utf16len, mChars.length * 2)];
+        }
+        char[] out = mChars;
+        int s = 0;
+        int p = off;
+
+        while (true) {
+            if (p >= end) {
+                throw new UTFDataFormatException("unterminated string");
+            }
+            int a = in[p++] & 0xff;
+            if (a == 0) {
+                break;
+            }
+            if (s == out.length) {
+                // utf16_size was a lie; cope anyway
+                char[] grown = new char[out.length * 2 + 1];
+                System.arraycopy(out, 0, grown, 0, s);
+                out = mChars = grown;
+            }
+            if (a < 0x80) {
+                out[s++] = (char) a;
+            } else if ((a & 0xe0) == 0xc0) {
+                if (p >= end) {
+                    throw new UTFDataFormatException("truncated sequence");
+                }
+                int b = in[p++] & 0xff;
+                if ((b & 0xc0) != 0x80) {
+                    throw new UTFDataFormatException("bad second byte");
+                }
+                out[s++] = (char) (((a & 0x1f) << 6) | (b & 0x3f));
+            } else if ((a & 0xf0) == 0xe0) {
+                if (p + 1 >= end) {
+                    throw new UTFDataFormatException("truncated sequence");
+                }
+                int b = in[p++] & 0xff;
+                int c = in[p++] & 0xff;
+                if (((b & 0xc0) != 0x80) || ((c & 0xc0) != 0x80)) {
+                    throw new UTFDataFormatException("bad second or third byte");
+                }
+                out[s++] = (char) (((a & 0x0f) << 12) | ((b & 0x3f) << 6) |
+                        (c & 0x3f));
+            } else {
+                throw new UTFDataFormatException("bad byte");
+            }
+        }
+
+        mByteLength = p - off;
+        return new String(out, 0, s);
+    }
+}
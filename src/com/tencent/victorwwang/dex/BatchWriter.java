@@ -0,0 +1,142 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Map;
+
+/**
+ * Writes --batch results as JSON Lines, one object per input:
+ * <pre>
+ *   {"index":0,"input":"app.apk","fields":16779,"methods":34106,
+ *    "millis":41.2,"packages":{"android.support.v4":[1034,2110],...}}
+ *   {"index":1,"input":"lib.jar",...,"declared":{"com.foo":[3,12,40,85],...}}
+ *   {"index":2,"input":"bad.apk","error":"..."}
+ * </pre>
+ * Each line is flushed as soon as it is complete, so a consumer can act
+ * on an input's results while the rest of the batch is still running.
+ */
+final class BatchWriter {
+    private final Writer out;
+    private final StringBuilder line = new StringBuilder(4096);
+
+    BatchWriter(OutputStream out) throws IOException {
+        this.out = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"), 1 << 16);
+    }
+
+    /**
+     * Writes the counts of an input, after calcPackageCount().
+     */
+    void write(int index, String input, DexFieldMethodCounts counts, long nanos)
+            throws IOException {
+        begin(index, input);
+        line.append(",\"fields\":").append(counts.getOverallFieldCount());
+        line.append(",\"methods\":").append(counts.getOverallMethodCount());
+        line.append(",\"millis\":").append(nanos / 100000 / 10.0);
+        line.append(",\"packages\":{");
+        boolean first = true;
+        for (Map.Entry<String, DexFieldMethodCounts.IntPair> e : counts.packageCount.entrySet()) {
+            if (!first) {
+                line.append(',');
+            }
+            first = false;
+            string(e.getKey());
+            line.append(":[").append(e.getValue().first).append(',')
+                    .append(e.getValue().second).append(']');
+        }
+        line.append('}');
+        if (counts.declaredCount != null) {
+            // static and instance fields, direct and virtual methods
+            line.append(",\"declared\":{");
+            first = true;
+            for (Map.Entry<String, int[]> e : counts.declaredCount.entrySet()) {
+                if (!first) {
+                    line.append(',');
+                }
+                first = false;
+                string(e.getKey());
+                int[] members = e.getValue();
+                line.append(":[").append(members[0]).append(',').append(members[1]).append(',')
+                        .append(members[2]).append(',').append(members[3]).append(']');
+            }
+            line.append('}');
+        }
+        end();
+    }
+
+    /**
+     * Writes why an input couldn't be counted.
+     */
+    void writeError(int index, String input, String error) throws IOException {
+        begin(index, input);
+        line.append(",\"error\":");
+        string(error);
+        end();
+    }
+
+    private void begin(int index, String input) {
+        line.setLength(0);
+        line.append("{\"index\":").append(index).append(",\"input\":");
+        string(input);
+    }
+
+    private void end() throws IOException {
+        line.append("}\n");
+        out.append(line);
+        out.flush();
+    }
+
+    private void string(String s) {
+        appendString(line, s);
+    }
+
+    /**
+     * Appends a JSON string literal.
+     */
+    static void appendString(StringBuilder line, String s) {
+        line.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char ch = s.charAt(i);
+            switch (ch) {
+                case '"':
+                    line.append("\\\"");
+                    break;
+                case '\\':
+                    line.append("\\\\");
+                    break;
+                case '\n':
+                    line.append("\\n");
+                    break;
+                case '\r':
+                    line.append("\\r");
+                    break;
+                case '\t':
+                    line.append("\\t");
+                    break;
+                default:
+                    if (ch < 0x20) {
+                        line.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        line.append(ch);
+                    }
+            }
+        }
+        line.append('"');
+    }
+}
@@ -0,0 +1,293 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.SecureRandom;
+
+/**
+ * Runs command lines inside one long-lived JVM, so repeated invocations
+ * skip JVM startup and run on warm code, with the package name caches and
+ * fork/join pools left over from earlier requests.
+ *
+ * The daemon listens on a loopback port.  A client sends its working
+ * directory and arguments; the daemon runs them and streams back what
+ * would have been printed, then the exit status.  Requests are run one at
+ * a time, since each takes over System.out and System.err while it runs.
+ *
+ * Only clients of the same user may connect: the daemon writes a random
+ * token to a file only that user can read, and requests must carry it.
+ */
+final class Daemon {
+    static final int DEFAULT_PORT = 46216;
+
+    private static final int REQUEST_TIMEOUT_MILLIS = 10 * 1000;
+    private static final int CONNECT_TIMEOUT_MILLIS = 1000;
+
+    /* response frames */
+    private static final int FRAME_EXIT = 0;
+    private static final int FRAME_OUT = 1;
+    private static final int FRAME_ERR = 2;
+
+    private Daemon() {
+    }
+
+    /**
+     * Serves requests until the process is killed.
+     */
+    static void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket();
+        server.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+
+        String token = newToken();
+        File tokenFile = tokenFile(port);
+        writeToken(tokenFile, token);
+        tokenFile.deleteOnExit();
+        System.err.println("Listening on " + server.getLocalSocketAddress());
+
+        PrintStream stdout = System.out;
+        PrintStream stderr = System.err;
+        try {
+            while (true) {
+                Socket socket = server.accept();
+                try {
+                    handle(socket, token);
+                } catch (IOException ioe) {
+                    // the client went away; nothing to tell it
+                    stderr.println("Request failed: " + ioe);
+                } finally {
+                    System.setOut(stdout);
+                    System.setErr(stderr);
+                    socket.close();
+                }
+            }
+        } finally {
+            server.close();
+        }
+    }
+
+    private static void handle(Socket socket, String token) throws IOException {
+        socket.setSoTimeout(REQUEST_TIMEOUT_MILLIS);
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(socket.getInputStream()));
+        if (!in.readUTF().equals(token)) {
+            return;
+        }
+        File workingDir = new File(in.readUTF());
+        String[] args = new String[in.readInt()];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = in.readUTF();
+        }
+        socket.setSoTimeout(0);
+
+        DataOutputStream response = new DataOutputStream(
+                new BufferedOutputStream(socket.getOutputStream()));
+        // frames go out in the order printed; the socket stream buffers them
+        PrintStream out = new PrintStream(new FrameOutputStream(response, FRAME_OUT), false);
+        PrintStream err = new PrintStream(new FrameOutputStream(response, FRAME_ERR), true);
+        System.setOut(out);
+        System.setErr(err);
+
+        int status;
+        try {
+            status = new Main(workingDir).run(args);
+        } catch (RuntimeException re) {
+            re.printStackTrace(err);
+            status = 1;
+        } catch (OutOfMemoryError oome) {
+            err.println("Out of memory; restart the daemon with a larger -Xmx");
+            status = 1;
+        }
+        out.flush();
+        err.flush();
+
+        synchronized (response) {
+            response.writeByte(FRAME_EXIT);
+            response.writeInt(status);
+            response.flush();
+        }
+    }
+
+    /**
+     * Runs a command line in the daemon on the port, printing what it
+     * prints.
+     *
+     * @return the exit status, or -1 if there is no daemon to run it
+     */
+    static int forward(int port, String[] args) throws IOException {
+        String token = readToken(tokenFile(port));
+        if (token == null) {
+            return -1;
+        }
+
+        Socket socket = new Socket();
+        try {
+            try {
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port),
+                        CONNECT_TIMEOUT_MILLIS);
+            } catch (IOException ioe) {
+                // stale token file, or the daemon is still starting
+                return -1;
+            }
+
+            DataOutputStream request = new DataOutputStream(
+                    new BufferedOutputStream(socket.getOutputStream()));
+            request.writeUTF(token);
+            request.writeUTF(new File("").getAbsolutePath());
+            request.writeInt(args.length);
+            for (String arg : args) {
+                request.writeUTF(arg);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(
+                    new BufferedInputStream(socket.getInputStream()));
+            byte[] buf = new byte[8192];
+            while (true) {
+                int frame;
+                try {
+                    frame = response.readByte();
+                } catch (EOFException eofe) {
+                    throw new IOException("daemon on port " + port + " closed the connection");
+                }
+                if (frame == FRAME_EXIT) {
+                    System.out.flush();
+                    return response.readInt();
+                }
+
+                int length = response.readInt();
+                if (length > buf.length) {
+                    buf = new byte[length];
+                }
+                response.readFully(buf, 0, length);
+                (frame == FRAME_OUT ? System.out : System.err).write(buf, 0, length);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static File tokenFile(int port) {
+        return new File(System.getProperty("user.home"),
+                ".dex-field-method-counts" + File.separator + "daemon-" + port);
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes) {
+            token.append(String.format("%02x", b));
+        }
+        return token.toString();
+    }
+
+    private static void writeToken(File file, String token) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create " + dir);
+        }
+        // created private, so nobody can open it before the token goes in
+        Path temp;
+        try {
+            temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp",
+                    PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException uoe) {
+            // not POSIX: the best we can do is narrow it before writing
+            temp = Files.createTempFile(dir.toPath(), file.getName(), ".tmp");
+            File tempFile = temp.toFile();
+            tempFile.setReadable(false, false);
+            tempFile.setWritable(false, false);
+            tempFile.setReadable(true, true);
+            tempFile.setWritable(true, true);
+        }
+        try {
+            Files.write(temp, token.getBytes("UTF-8"));
+            Files.move(temp, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static String readToken(File file) throws IOException {
+        if (!file.isFile()) {
+            return null;
+        }
+        InputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) Math.min(file.length(), 1024)];
+            new DataInputStream(in).readFully(bytes);
+            return new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Sends whatever is written to it as frames of one kind.
+     */
+    private static class FrameOutputStream extends OutputStream {
+        private final DataOutputStream response;
+        private final int frame;
+
+        FrameOutputStream(DataOutputStream response, int frame) {
+            this.response = response;
+            this.frame = frame;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] { (byte) b }, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return;
+            }
+            synchronized (response) {
+                response.writeByte(frame);
+                response.writeInt(len);
+                response.write(b, off, len);
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            synchronized (response) {
+                response.flush();
+            }
+        }
+    }
+}
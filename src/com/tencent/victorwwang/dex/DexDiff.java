@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.Output;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the counts of two inputs.
+ *
+ * PACKAGE and CLASS level compare the per-name counts of both sides with
+ * one merge pass over their sorted maps.  MEMBER level compares the sets
+ * of field and method signatures, held as sorted arrays of 64-bit
+ * fingerprints, and names exactly what was added and removed.
+ */
+final class DexDiff {
+    enum Level {
+        PACKAGE,
+        CLASS,
+        MEMBER
+    }
+
+    private final int tolerance;
+    private final PrintStream out;
+
+    /**
+     * @param tolerance how far a field or method count may move before
+     *     the package or class is reported as changed
+     */
+    DexDiff(int tolerance, PrintStream out) {
+        this.tolerance = tolerance;
+        this.out = out;
+    }
+
+    /**
+     * Reports the names whose counts differ, both maps being sorted by
+     * name (e.g. DexFieldMethodCounts.packageCount).
+     *
+     * @return the number of names reported
+     */
+    int diffCounts(Map<String, DexFieldMethodCounts.IntPair> before,
+            Map<String, DexFieldMethodCounts.IntPair> after) {
+        Iterator<Map.Entry<String, DexFieldMethodCounts.IntPair>> left =
+                before.entrySet().iterator();
+        Iterator<Map.Entry<String, DexFieldMethodCounts.IntPair>> right =
+                after.entrySet().iterator();
+        Map.Entry<String, DexFieldMethodCounts.IntPair> l = left.hasNext() ? left.next() : null;
+        Map.Entry<String, DexFieldMethodCounts.IntPair> r = right.hasNext() ? right.next() : null;
+
+        StringBuilder table = new StringBuilder();
+        int rows = 0;
+        int fieldsDiff = 0;
+        int methodsDiff = 0;
+        while (l != null || r != null) {
+            int cmp = l == null ? 1 : r == null ? -1 : l.getKey().compareTo(r.getKey());
+            String name;
+            int fields0 = 0, fields1 = 0, methods0 = 0, methods1 = 0;
+            if (cmp <= 0) {
+                name = l.getKey();
+                fields0 = l.getValue().first;
+                methods0 = l.getValue().second;
+                l = left.hasNext() ? left.next() : null;
+            } else {
+                name = r.getKey();
+            }
+            if (cmp >= 0) {
+                fields1 = r.getValue().first;
+                methods1 = r.getValue().second;
+                r = right.hasNext() ? right.next() : null;
+            }
+
+            if (cmp == 0 && Math.abs(fields1 - fields0) <= tolerance &&
+                    Math.abs(methods1 - methods0) <= tolerance) {
+                continue;
+            }
+
+            if (rows++ == 0) {
+                table.append("fields\t\t\t\tmethods\t\t\t\tpackage/class name\n");
+            }
+            fieldsDiff += fields1 - fields0;
+            methodsDiff += methods1 - methods0;
+            // same as printf("%5s|%-5s\t\t\t%5s|%-5s\t\t\t%s\n")
+            padLeft(table, fields0).append('|');
+            padRight(table, fields1).append("\t\t\t");
+            padLeft(table, methods0).append('|');
+            padRight(table, methods1).append("\t\t\t");
+            table.append(name).append('\n');
+        }
+        out.print(table);
+
+        if (rows > 0) {
+            out.println("Overall fields diff count: " + fieldsDiff);
+            out.println("Overall methods diff count: " + methodsDiff);
+        } else {
+            out.println("fields & methods is same");
+        }
+        return rows;
+    }
+
+    /**
+     * Reports every field and method signature present on only one side.
+     *
+     * @return the number of members reported
+     */
+    int diffMembers(Members before, Members after) {
+        long[] removedFields = difference(before.fields, after.fields);
+        long[] addedFields = difference(after.fields, before.fields);
+        long[] removedMethods = difference(before.methods, after.methods);
+        long[] addedMethods = difference(after.methods, before.methods);
+
+        int rows = removedFields.length + addedFields.length +
+                removedMethods.length + addedMethods.length;
+        if (rows == 0) {
+            out.println("fields & methods is same");
+            return 0;
+        }
+
+        printMembers("- field  ", before.fieldSignatures(removedFields));
+        printMembers("+ field  ", after.fieldSignatures(addedFields));
+        printMembers("- method ", before.methodSignatures(removedMethods));
+        printMembers("+ method ", after.methodSignatures(addedMethods));
+
+        out.println("Overall fields diff count: " +
+                (addedFields.length - removedFields.length) +
+                " (+" + addedFields.length + " -" + removedFields.length + ")");
+        out.println("Overall methods diff count: " +
+                (addedMethods.length - removedMethods.length) +
+                " (+" + addedMethods.length + " -" + removedMethods.length + ")");
+        return rows;
+    }
+
+    private static StringBuilder padLeft(StringBuilder sb, int value) {
+        String s = Integer.toString(value);
+        for (int i = s.length(); i < 5; i++) {
+            sb.append(' ');
+        }
+        return sb.append(s);
+    }
+
+    private static StringBuilder padRight(StringBuilder sb, int value) {
+        String s = Integer.toString(value);
+        sb.append(s);
+        for (int i = s.length(); i < 5; i++) {
+            sb.append(' ');
+        }
+        return sb;
+    }
+
+    private void printMembers(String prefix, List<String> signatures) {
+        StringBuilder lines = new StringBuilder();
+        for (String signature : signatures) {
+            lines.append(prefix).append(signature).append('\n');
+        }
+        out.print(lines);
+    }
+
+    /**
+     * Returns the values of sorted set a that are not in sorted set b.
+     */
+    static long[] difference(long[] a, long[] b) {
+        long[] result = new long[a.length];
+        int n = 0;
+        int j = 0;
+        for (int i = 0; i < a.length; i++) {
+            long value = a[i];
+            while (j < b.length && b[j] < value) {
+                j++;
+            }
+            if (j == b.length || b[j] != value) {
+                result[n++] = value;
+            }
+        }
+        return Arrays.copyOf(result, n);
+    }
+
+    /**
+     * Sorts and removes duplicates in place, returning the new length.
+     */
+    private static int sortUnique(long[] values, int length) {
+        Arrays.sort(values, 0, length);
+        int n = 0;
+        for (int i = 0; i < length; i++) {
+            if (n == 0 || values[n - 1] != values[i]) {
+                values[n++] = values[i];
+            }
+        }
+        return n;
+    }
+
+    /**
+     * The fields and methods of one side, over all of its dex files.
+     */
+    static final class Members {
+        private final List<DexData> dexes;
+        private final boolean[][] keepFields;
+        private final boolean[][] keepMethods;
+        final long[] fields;
+        final long[] methods;
+
+        /**
+         * Collects the signature fingerprints of the members that pass
+         * the filters.  The same member referenced from several dexes is
+         * counted once.  packageFilter is matched against the names
+         * counting gives, so with includeClasses against class names.
+         */
+        Members(List<DexData> dexes, DexFieldMethodCounts.Filter filter, String packageFilter,
+                boolean includeClasses) {
+            this.dexes = dexes;
+            keepFields = new boolean[dexes.size()][];
+            keepMethods = new boolean[dexes.size()][];
+
+            int fieldCount = 0, methodCount = 0;
+            for (DexData dexData : dexes) {
+                fieldCount += dexData.getFieldIdsSize();
+                methodCount += dexData.getMethodIdsSize();
+            }
+            long[] allFields = new long[fieldCount];
+            long[] allMethods = new long[methodCount];
+            int nf = 0, nm = 0;
+            for (int d = 0; d < dexes.size(); d++) {
+                DexData dexData = dexes.get(d);
+                boolean[] keepTypes = keepTypes(dexData, filter, packageFilter, includeClasses);
+
+                long[] fingerprints = dexData.getFieldFingerprints();
+                keepFields[d] = new boolean[fingerprints.length];
+                for (int i = 0; i < fingerprints.length; i++) {
+                    if (keepTypes[dexData.getFieldClassIndex(i)]) {
+                        keepFields[d][i] = true;
+                        allFields[nf++] = fingerprints[i];
+                    }
+                }
+
+                fingerprints = dexData.getMethodFingerprints();
+                keepMethods[d] = new boolean[fingerprints.length];
+                for (int i = 0; i < fingerprints.length; i++) {
+                    if (keepTypes[dexData.getMethodClassIndex(i)]) {
+                        keepMethods[d][i] = true;
+                        allMethods[nm++] = fingerprints[i];
+                    }
+                }
+            }
+            fields = Arrays.copyOf(allFields, sortUnique(allFields, nf));
+            methods = Arrays.copyOf(allMethods, sortUnique(allMethods, nm));
+        }
+
+        /** Returns the number of distinct fields and methods. */
+        int size() {
+            return fields.length + methods.length;
+        }
+
+        private static boolean[] keepTypes(DexData dexData,
+                DexFieldMethodCounts.Filter filter, String packageFilter, boolean includeClasses) {
+            boolean[] keep = new boolean[dexData.getTypeIdsSize()];
+            PackageNameCache packageNames = PackageNameCache.get(includeClasses);
+            for (int i = 0; i < keep.length; i++) {
+                if (filter != DexFieldMethodCounts.Filter.ALL &&
+                        dexData.isInternalType(i) != (filter == DexFieldMethodCounts.Filter.DEFINED_ONLY)) {
+                    continue;
+                }
+                keep[i] = packageFilter == null ||
+                        packageNames.packageName(dexData.getTypeDescriptor(i)).startsWith(packageFilter);
+            }
+            return keep;
+        }
+
+        List<String> fieldSignatures(long[] wanted) {
+            List<String> signatures = new ArrayList<String>();
+            BitSet seen = new BitSet(wanted.length);
+            for (int d = 0; d < dexes.size(); d++) {
+                DexData dexData = dexes.get(d);
+                long[] fingerprints = dexData.getFieldFingerprints();
+                for (int i = 0; i < fingerprints.length; i++) {
+                    if (keepFields[d][i] && take(wanted, seen, fingerprints[i])) {
+                        signatures.add(dotted(dexData.getFieldSignature(i)));
+                    }
+                }
+            }
+            Collections.sort(signatures);
+            return signatures;
+        }
+
+        List<String> methodSignatures(long[] wanted) {
+            List<String> signatures = new ArrayList<String>();
+            BitSet seen = new BitSet(wanted.length);
+            for (int d = 0; d < dexes.size(); d++) {
+                DexData dexData = dexes.get(d);
+                long[] fingerprints = dexData.getMethodFingerprints();
+                for (int i = 0; i < fingerprints.length; i++) {
+                    if (keepMethods[d][i] && take(wanted, seen, fingerprints[i])) {
+                        signatures.add(dotted(dexData.getMethodSignature(i)));
+                    }
+                }
+            }
+            Collections.sort(signatures);
+            return signatures;
+        }
+
+        /**
+         * Returns true the first time a fingerprint in the sorted wanted
+         * set is seen, so a member in several dexes is named once.
+         */
+        private static boolean take(long[] wanted, BitSet seen, long fingerprint) {
+            int pos = Arrays.binarySearch(wanted, fingerprint);
+            if (pos < 0 || seen.get(pos)) {
+                return false;
+            }
+            seen.set(pos);
+            return true;
+        }
+
+        /**
+         * Turns "Lcom/foo/Bar;->name..." into "com.foo.Bar.name...".
+         */
+        private static String dotted(String signature) {
+            int arrow = signature.indexOf("->");
+            return Output.descriptorToDot(signature.substring(0, arrow)) + "." +
+                    signature.substring(arrow + 2);
+        }
+    }
+}
@@ -0,0 +1,350 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.DexData;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * Flight Recorder events for opening inputs, each DexData load phase,
+ * counting, aggregation and output, so that a recording shows them next
+ * to GC and allocation events.
+ *
+ * They stay compiled in: an event not enabled in a recording costs a
+ * shouldCommit() check, and on a JVM without jdk.jfr the begin methods
+ * return null and no event class is ever loaded.
+ */
+final class DexEvents {
+    private static final String CATEGORY = "DEX Field Method Counts";
+
+    /** Whether this JVM has Flight Recorder. */
+    static final boolean AVAILABLE = available();
+
+    private DexEvents() {
+    }
+
+    private static boolean available() {
+        try {
+            Class.forName("jdk.jfr.Event");
+            return true;
+        } catch (ClassNotFoundException cnfe) {
+            return false;
+        } catch (LinkageError le) {
+            return false;
+        }
+    }
+
+    @Name("dexcounts.InputOpen")
+    @Label("Input Open")
+    @Category(CATEGORY)
+    @Description("Opening a dex, apk or jar, inflating or mapping its classes*.dex")
+    static final class InputOpen extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Dex Files")
+        int dexes;
+
+        @Label("Dex Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("dexcounts.LoadPhase")
+    @Label("Dex Load Phase")
+    @Category(CATEGORY)
+    @Description("One phase of DexData.load(), with the size of the table it reads")
+    static final class LoadPhase extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Dex")
+        String dex;
+
+        @Label("Phase")
+        String phase;
+
+        @Label("Items")
+        int items;
+
+        @Label("Table Bytes")
+        @DataAmount
+        long bytes;
+    }
+
+    @Name("dexcounts.Count")
+    @Label("Dex Count")
+    @Category(CATEGORY)
+    @Description("Counting the fields and methods of one dex by class")
+    static final class Count extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Dex")
+        String dex;
+
+        @Label("Fields")
+        int fields;
+
+        @Label("Methods")
+        int methods;
+
+        @Label("From Cache")
+        boolean cached;
+    }
+
+    @Name("dexcounts.Aggregate")
+    @Label("Count Aggregation")
+    @Category(CATEGORY)
+    @Description("Rolling an input's class counts up into packages")
+    static final class Aggregate extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Packages")
+        int packages;
+
+        @Label("Fields")
+        int fields;
+
+        @Label("Methods")
+        int methods;
+    }
+
+    @Name("dexcounts.Render")
+    @Label("Render")
+    @Category(CATEGORY)
+    @Description("Printing an input's counts")
+    static final class Render extends Event {
+        @Label("Input")
+        String input;
+
+        @Label("Style")
+        String style;
+
+        @Label("Rows")
+        int rows;
+    }
+
+    @Name("dexcounts.Diff")
+    @Label("Diff")
+    @Category(CATEGORY)
+    @Description("Comparing and printing two sets of counts")
+    static final class Diff extends Event {
+        @Label("Before")
+        String before;
+
+        @Label("After")
+        String after;
+
+        @Label("Level")
+        String level;
+
+        @Label("Items Compared")
+        int items;
+
+        @Label("Rows")
+        int rows;
+    }
+
+    static InputOpen beginOpen() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        InputOpen event = new InputOpen();
+        event.begin();
+        return event;
+    }
+
+    static void endOpen(InputOpen event, String input, int dexes, long bytes) {
+        if (event != null && event.shouldCommit()) {
+            event.input = input;
+            event.dexes = dexes;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    static Count beginCount() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Count event = new Count();
+        event.begin();
+        return event;
+    }
+
+    static void endCount(Count event, String input, String dex, int fields, int methods,
+            boolean cached) {
+        if (event != null && event.shouldCommit()) {
+            event.input = input;
+            event.dex = dex;
+            event.fields = fields;
+            event.methods = methods;
+            event.cached = cached;
+            event.commit();
+        }
+    }
+
+    static Aggregate beginAggregate() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Aggregate event = new Aggregate();
+        event.begin();
+        return event;
+    }
+
+    static void endAggregate(Aggregate event, String input, DexFieldMethodCounts counts) {
+        if (event != null && event.shouldCommit()) {
+            event.input = input;
+            event.packages = counts.packageCount.size();
+            event.fields = counts.getOverallFieldCount();
+            event.methods = counts.getOverallMethodCount();
+            event.commit();
+        }
+    }
+
+    static Render beginRender() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Render event = new Render();
+        event.begin();
+        return event;
+    }
+
+    static void endRender(Render event, String input, String style, int rows) {
+        if (event != null && event.shouldCommit()) {
+            event.input = input;
+            event.style = style;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    static Diff beginDiff() {
+        if (!AVAILABLE) {
+            return null;
+        }
+        Diff event = new Diff();
+        event.begin();
+        return event;
+    }
+
+    static void endDiff(Diff event, String before, String after, DexDiff.Level level,
+            int items, int rows) {
+        if (event != null && event.shouldCommit()) {
+            event.before = before;
+            event.after = after;
+            event.level = level.name();
+            event.items = items;
+            event.rows = rows;
+            event.commit();
+        }
+    }
+
+    /**
+     * Returns a listener that records a LoadPhase event for each phase
+     * of the dex's load() and passes the phases on, or just next without
+     * Flight Recorder.
+     */
+    static DexData.LoadListener loadListener(String input, String dex, DexData dexData,
+            DexData.LoadListener next) {
+        return AVAILABLE ? new LoadPhases(input, dex, dexData, next) : next;
+    }
+
+    private static final class LoadPhases implements DexData.LoadListener {
+        private final String input;
+        private final String dex;
+        private final DexData dexData;
+        private final DexData.LoadListener next;
+        private LoadPhase event;
+
+        LoadPhases(String input, String dex, DexData dexData, DexData.LoadListener next) {
+            this.input = input;
+            this.dex = dex;
+            this.dexData = dexData;
+            this.next = next;
+        }
+
+        @Override
+        public void phaseStarted(DexData.Phase phase) {
+            if (next != null) {
+                next.phaseStarted(phase);
+            }
+            event = new LoadPhase();
+            event.begin();
+        }
+
+        @Override
+        public void phaseEnded(DexData.Phase phase) {
+            if (event.shouldCommit()) {
+                event.input = input;
+                event.dex = dex;
+                event.phase = phase.name().toLowerCase();
+                setSize(event, phase);
+                event.commit();
+            }
+            event = null;
+            if (next != null) {
+                next.phaseEnded(phase);
+            }
+        }
+
+        /**
+         * Sets the entries and bytes of the table a phase reads.
+         */
+        private void setSize(LoadPhase event, DexData.Phase phase) {
+            switch (phase) {
+                case HEADER:
+                    event.items = 1;
+                    event.bytes = DexData.HEADER_SIZE;
+                    break;
+                case STRINGS:
+                    event.items = dexData.getStringIdsSize();
+                    event.bytes = 4L * event.items;
+                    break;
+                case TYPE_IDS:
+                    event.items = dexData.getTypeIdsSize();
+                    event.bytes = 4L * event.items;
+                    break;
+                case PROTO_IDS:
+                    event.items = dexData.getProtoIdsSize();
+                    event.bytes = 12L * event.items;
+                    break;
+                case FIELD_IDS:
+                    event.items = dexData.getFieldIdsSize();
+                    event.bytes = 8L * event.items;
+                    break;
+                case METHOD_IDS:
+                    event.items = dexData.getMethodIdsSize();
+                    event.bytes = 8L * event.items;
+                    break;
+                case CLASS_DEFS:
+                case INTERNAL:
+                    event.items = dexData.getClassDefsSize();
+                    event.bytes = 32L * event.items;
+                    break;
+            }
+        }
+    }
+}
@@ -16,39 +16,44 @@ package com.tencent.victorwwang.dex;
 
 import com.android.dexdeps.*;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.PrintStream;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class DexFieldMethodCounts {
-    private static final PrintStream out = System.out;
     public int overallFieldCount = 0;
     public int overallMethodCount = 0;
+    // members left out by --filter, for --stats
+    int filteredTypeCount = 0;
+    int filteredFieldCount = 0;
+    int filteredMethodCount = 0;
     private final OutputStyle outputStyle;
-    private final Node packageFieldTree;
-    private final Map<String, IntHolder> packageFieldCount;
-    private final Node packageMethodTree;
-    private final Map<String, IntHolder> packageMethodCount;
+    private final int maxDepth;
+    private final PackageTrie packages;
 
     public final Map<String, IntPair> packageCount;
+    // members declared in class_data_items by package name as in
+    // packageCount, in DexData's column order; null unless counted
+    Map<String, int[]> declaredCount;
 
     DexFieldMethodCounts(OutputStyle outputStyle) {
+        this(outputStyle, Integer.MAX_VALUE);
+    }
+
+    /**
+     * @param maxDepth how many package levels TREE output goes down
+     */
+    DexFieldMethodCounts(OutputStyle outputStyle, int maxDepth) {
         this.outputStyle = outputStyle;
-        packageFieldTree = this.outputStyle == OutputStyle.TREE ? new Node() : null;
-        packageFieldCount = this.outputStyle == OutputStyle.FLAT
-                ? new TreeMap<String, IntHolder>() : null;
-        packageMethodTree = this.outputStyle == OutputStyle.TREE ? new Node() : null;
-        packageMethodCount = this.outputStyle == OutputStyle.FLAT
-                ? new TreeMap<String, IntHolder>() : null;
+        this.maxDepth = maxDepth;
+        packages = new PackageTrie();
 
         packageCount = new TreeMap<String, IntPair>();
     }
 
-    // Mutable int holder
-    public static class IntHolder {
-        int value;
-    }
-
-
     public static class IntPair {
         public int first;
         public int second;
@@ -68,11 +73,8 @@ public class DexFieldMethodCounts {
 
             IntPair intPair = (IntPair) o;
 
-//            if (first != intPair.first) return false;
-//            return second == intPair.second;
-            if (Math.abs(first - intPair.first) > 2)  return false;
-            return Math.abs(second - intPair.second) <= 2;
-
+            if (first != intPair.first) return false;
+            return second == intPair.second;
         }
 
         @Override
@@ -93,60 +95,36 @@ public class DexFieldMethodCounts {
         TREE {
             @Override
             void output(DexFieldMethodCounts counts) {
-                System.out.println("========== fields ==========");
-                counts.packageFieldTree.output("");
+                PrintStream out = System.out;
+                out.println("========== fields ==========");
+                counts.packages.printTree(out, true, counts.maxDepth);
 
-                System.out.println("========== methods ==========");
-                counts.packageMethodTree.output("");
+                out.println("========== methods ==========");
+                counts.packages.printTree(out, false, counts.maxDepth);
             }
         },
         FLAT {
             @Override
             void output(DexFieldMethodCounts counts) {
-//                System.out.println("========== fields ==========");
-//                for (Map.Entry<String, IntHolder> e : counts.packageFieldCount.entrySet()) {
-//                    String packageName = e.getKey();
-//                    if (packageName == "") {
-//                        packageName = "<no package>";
-//                    }
-//                    System.out.printf("%6s %s\n", e.getValue().value, packageName);
-//                }
-//
-//                System.out.println("========== methods ==========");
-//                for (Map.Entry<String, IntHolder> e : counts.packageMethodCount.entrySet()) {
-//                    String packageName = e.getKey();
-//                    if (packageName == "") {
-//                        packageName = "<no package>";
-//                    }
-//                    System.out.printf("%6s %s\n", e.getValue().value, packageName);
-//                }
-
-                System.out.println("fields\t\tmethods\t\tpackage/class name");
-//                for (Map.Entry<String, IntHolder> e : counts.packageFieldCount.entrySet()) {
-//                    String packageName = e.getKey();
-//
-//                    int menthods = 0;
-//                    if (counts.packageMethodCount.get(packageName) != null) {
-//                        menthods = counts.packageMethodCount.get(packageName).value;
-//                        counts.packageMethodCount.remove(packageName);
-//                    }
-//
-//                    if (packageName == "") {
-//                        packageName = "<no package>";
-//                    }
-//
-//                    System.out.printf("%s\t\t%s\t\t%s\n", e.getValue().value, menthods, packageName);
-//                }
-//
-//                for (Map.Entry<String, IntHolder> e : counts.packageMethodCount.entrySet()) {
-//                    String packageName = e.getKey();
-//                    System.out.printf("%s\t\t%s\t\t%s\n", 0, e.getValue().value, packageName);
-//                }
-
+                // one write for the whole table, not a format and flush per line
+                StringBuilder table = new StringBuilder(64 * (counts.packageCount.size() + 1));
+                Map<String, int[]> declared = counts.declaredCount;
+                table.append(declared == null ? "fields\t\tmethods\t\tpackage/class name\n" :
+                        "fields\t\tmethods\t\tstatic\tinstance\tdirect\tvirtual\t\tpackage/class name\n");
                 for (Map.Entry<String, IntPair> e : counts.packageCount.entrySet()) {
                     String packageName = e.getKey();
-                    System.out.printf("%s\t\t%s\t\t%s\n", e.getValue().first, e.getValue().second, packageName);
+                    table.append(e.getValue().first).append("\t\t")
+                            .append(e.getValue().second).append("\t\t");
+                    if (declared != null) {
+                        int[] members = declared.get(packageName);
+                        for (int column = 0; column < 4; column++) {
+                            table.append(members == null ? 0 : members[column])
+                                    .append(column < 3 ? "\t" : "\t\t");
+                        }
+                    }
+                    table.append(packageName).append('\n');
                 }
+                System.out.print(table);
             }
         };
 
@@ -165,27 +143,20 @@ public class DexFieldMethodCounts {
         return overallMethodCount;
     }
 
+    /**
+     * Fills packageCount with the fields and methods under each package
+     * (or class) name.
+     */
     public void calcPackageCount() {
-        for (Map.Entry<String, IntHolder> e : packageFieldCount.entrySet()) {
-            String packageName = e.getKey();
-
-            int menthods = 0;
-            if (packageMethodCount.get(packageName) != null) {
-                menthods = packageMethodCount.get(packageName).value;
-                packageMethodCount.remove(packageName);
-            }
-
-            if (packageName == "") {
-                packageName = "<no package>";
+        packages.forEachPackage(new PackageTrie.Visitor() {
+            @Override
+            public void visit(String packageName, int fields, int methods) {
+                if (packageName.length() == 0) {
+                    packageName = "<no package>";
+                }
+                packageCount.put(packageName, new IntPair(fields, methods));
             }
-
-            packageCount.put(packageName, new IntPair(e.getValue().value, menthods));
-        }
-
-        for (Map.Entry<String, IntHolder> e : packageMethodCount.entrySet()) {
-            String packageName = e.getKey();
-            packageCount.put(packageName, new IntPair(0, e.getValue().value));
-        }
+        });
     }
 
     public void putPackageCount(Map<String, IntPair> map) {
@@ -203,191 +174,280 @@ public class DexFieldMethodCounts {
         }
     }
 
-    private static class Node {
-        int count = 0;
-        NavigableMap<String, Node> children = new TreeMap<String, Node>();
+    /**
+     * Adds counts into this one, before calcPackageCount().  Merging is
+     * associative, so per-dex counts can be combined in any grouping with
+     * the same result.
+     */
+    void merge(DexFieldMethodCounts other) {
+        overallFieldCount += other.overallFieldCount;
+        overallMethodCount += other.overallMethodCount;
+        filteredTypeCount += other.filteredTypeCount;
+        filteredFieldCount += other.filteredFieldCount;
+        filteredMethodCount += other.filteredMethodCount;
+        packages.merge(other.packages);
+        if (other.declaredCount != null) {
+            if (declaredCount == null) {
+                declaredCount = new TreeMap<String, int[]>();
+            }
+            addDeclared(other.declaredCount, 1);
+        }
+    }
 
-        void output(String indent) {
-            if (indent.length() == 0) {
-                out.println("<root>: " + count);
+    /**
+     * Adds (sign 1) or takes out (sign -1) declared member counts, dropping
+     * names left with none.
+     */
+    private void addDeclared(Map<String, int[]> other, int sign) {
+        for (Map.Entry<String, int[]> e : other.entrySet()) {
+            int[] members = declaredCount.get(e.getKey());
+            if (members == null) {
+                members = new int[4];
+                declaredCount.put(e.getKey(), members);
+            }
+            int total = 0;
+            for (int column = 0; column < 4; column++) {
+                members[column] += sign * e.getValue()[column];
+                total |= members[column];
             }
-            indent += "    ";
-            for (String name : children.navigableKeySet()) {
-                Node child = children.get(name);
-                out.println(indent + name + ": " + child.count);
-                child.output(indent);
+            if (total == 0) {
+                declaredCount.remove(e.getKey());
             }
         }
     }
 
-    public void generate(
-            DexData dexData, boolean includeClasses,
-            String packageFilter, int maxDepth, Filter filter) {
-        MethodRef[] methodRefs = getMethodRefs(dexData, filter);
-
-        for (MethodRef methodRef : methodRefs) {
-            String classDescriptor = methodRef.getDeclClassName();
-            String packageName = includeClasses ?
-                    Output.descriptorToDot(classDescriptor).replace('$', '.') :
-                    Output.packageNameOnly(classDescriptor);
-            if (packageFilter != null &&
-                    !packageName.startsWith(packageFilter)) {
-                continue;
-            }
-            overallMethodCount++;
-            if (outputStyle == OutputStyle.TREE) {
-                String packageNamePieces[] = packageName.split("\\.");
-                Node packageNode = packageMethodTree;
-                for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
-                    packageNode.count++;
-                    String name = packageNamePieces[i];
-                    if (packageNode.children.containsKey(name)) {
-                        packageNode = packageNode.children.get(name);
-                    } else {
-                        Node childPackageNode = new Node();
-                        if (name.length() == 0) {
-                            // This method is declared in a class that is part of the default package.
-                            // Typical examples are methods that operate on arrays of primitive data types.
-                            name = "<default>";
-                        }
-                        packageNode.children.put(name, childPackageNode);
-                        packageNode = childPackageNode;
-                    }
+    /**
+     * Adds one dex's counts into these, after calcPackageCount() on these,
+     * updating packageCount in place rather than recomputing it.
+     */
+    void add(DexFieldMethodCounts dex) {
+        merge(dex);
+        updatePackageCount(dex, 1);
+    }
+
+    /**
+     * Takes out the counts of a dex that add() put in.
+     */
+    void remove(DexFieldMethodCounts dex) {
+        overallFieldCount -= dex.overallFieldCount;
+        overallMethodCount -= dex.overallMethodCount;
+        filteredTypeCount -= dex.filteredTypeCount;
+        filteredFieldCount -= dex.filteredFieldCount;
+        filteredMethodCount -= dex.filteredMethodCount;
+        packages.unmerge(dex.packages);
+        updatePackageCount(dex, -1);
+        if (dex.declaredCount != null) {
+            addDeclared(dex.declaredCount, -1);
+        }
+    }
+
+    private void updatePackageCount(DexFieldMethodCounts dex, final int sign) {
+        dex.packages.forEachPackage(new PackageTrie.Visitor() {
+            @Override
+            public void visit(String packageName, int fields, int methods) {
+                if (packageName.length() == 0) {
+                    packageName = "<no package>";
+                }
+                IntPair pair = packageCount.get(packageName);
+                if (pair != null) {
+                    fields = pair.first + sign * fields;
+                    methods = pair.second + sign * methods;
                 }
-                packageNode.count++;
-            } else if (outputStyle == OutputStyle.FLAT) {
-                IntHolder count = packageMethodCount.get(packageName);
-                if (count == null) {
-                    count = new IntHolder();
-                    packageMethodCount.put(packageName, count);
+                if (fields == 0 && methods == 0) {
+                    packageCount.remove(packageName);
+                } else {
+                    packageCount.put(packageName, new IntPair(fields, methods));
                 }
-                count.value++;
+            }
+        });
+    }
+
+    /**
+     * Writes the counts, before calcPackageCount(), in the form readFrom()
+     * expects.
+     */
+    void writeTo(final DataOutput out) throws IOException {
+        out.writeInt(overallFieldCount);
+        out.writeInt(overallMethodCount);
+        out.writeInt(filteredTypeCount);
+        out.writeInt(filteredFieldCount);
+        out.writeInt(filteredMethodCount);
+
+        final List<String> names = new ArrayList<String>();
+        final List<IntPair> pairs = new ArrayList<IntPair>();
+        packages.forEachPackage(new PackageTrie.Visitor() {
+            @Override
+            public void visit(String packageName, int fields, int methods) {
+                names.add(packageName);
+                pairs.add(new IntPair(fields, methods));
+            }
+        });
+        out.writeInt(names.size());
+        for (int i = 0; i < names.size(); i++) {
+            out.writeUTF(names.get(i));
+            out.writeInt(pairs.get(i).first);
+            out.writeInt(pairs.get(i).second);
+        }
+
+        if (declaredCount == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(declaredCount.size());
+        for (Map.Entry<String, int[]> e : declaredCount.entrySet()) {
+            out.writeUTF(e.getKey());
+            for (int column = 0; column < 4; column++) {
+                out.writeInt(e.getValue()[column]);
             }
         }
     }
 
+    /**
+     * Reads counts written by writeTo().
+     */
+    static DexFieldMethodCounts readFrom(DataInput in, OutputStyle outputStyle, int maxDepth)
+            throws IOException {
+        DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+        counts.overallFieldCount = in.readInt();
+        counts.overallMethodCount = in.readInt();
+        counts.filteredTypeCount = in.readInt();
+        counts.filteredFieldCount = in.readInt();
+        counts.filteredMethodCount = in.readInt();
+
+        int size = in.readInt();
+        for (int i = 0; i < size; i++) {
+            String packageName = in.readUTF();
+            int fields = in.readInt();
+            int methods = in.readInt();
+            counts.packages.add(packageName, fields, methods);
+        }
+
+        size = in.readInt();
+        if (size >= 0) {
+            counts.declaredCount = new TreeMap<String, int[]>();
+        }
+        for (int i = 0; i < size; i++) {
+            String packageName = in.readUTF();
+            int[] members = new int[4];
+            for (int column = 0; column < 4; column++) {
+                members[column] = in.readInt();
+            }
+            counts.declaredCount.put(packageName, members);
+        }
+        return counts;
+    }
+
+    /**
+     * Counts the methods of one dex.
+     */
+    public void generate(
+            DexData dexData, boolean includeClasses,
+            String packageFilter, Filter filter) {
+        generate(dexData, null, dexData.getMethodCountsByType(),
+                null, includeClasses, packageFilter, filter);
+    }
+
+    /**
+     * Counts the fields and methods of one dex.
+     */
     public void generate2(
             DexData dexData, boolean includeClasses,
-            String packageFilter, int maxDepth, Filter filter) {
-        FieldRef[] fieldRefs = getFieldRefs(dexData);
-
-        for (FieldRef fieldRef : fieldRefs) {
-            String classDescriptor = fieldRef.getDeclClassName();
-            String packageName = includeClasses ?
-                    Output.descriptorToDot(classDescriptor).replace('$', '.') :
-                    Output.packageNameOnly(classDescriptor);
-            if (packageFilter != null &&
-                    !packageName.startsWith(packageFilter)) {
-                continue;
-            }
-            overallFieldCount++;
-            if (outputStyle == OutputStyle.TREE) {
-                String packageNamePieces[] = packageName.split("\\.");
-                Node packageNode = packageFieldTree;
-                for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
-                    packageNode.count++;
-                    String name = packageNamePieces[i];
-                    if (packageNode.children.containsKey(name)) {
-                        packageNode = packageNode.children.get(name);
-                    } else {
-                        Node childPackageNode = new Node();
-                        if (name.length() == 0) {
-                            // This method is declared in a class that is part of the default package.
-                            // Typical examples are methods that operate on arrays of primitive data types.
-                            name = "<default>";
+            String packageFilter, Filter filter) {
+        generate(dexData, dexData.getFieldCountsByType(), dexData.getMethodCountsByType(),
+                null, includeClasses, packageFilter, filter);
+    }
+
+    /**
+     * Counts the fields and methods of one dex, and also the members each
+     * class declares in its class data.  Classes --filter or the package
+     * filter leave out aren't decoded.
+     *
+     * @param pool where to decode the class data, or null for this thread
+     */
+    public void generateDeclared(
+            final DexData dexData, final boolean includeClasses,
+            final String packageFilter, Filter filter, ForkJoinPool pool) {
+        if (declaredCount == null) {
+            declaredCount = new TreeMap<String, int[]>();
+        }
+        int[][] declared = null;
+        if (filter != Filter.REFERENCED_ONLY) {
+            declared = dexData.getDeclaredCountsByType(packageFilter == null ? null :
+                    new DexData.ClassFilter() {
+                        @Override
+                        public boolean accept(int typeIdx) {
+                            return packageName(dexData.getTypeDescriptor(typeIdx), includeClasses)
+                                    .startsWith(packageFilter);
                         }
-                        packageNode.children.put(name, childPackageNode);
-                        packageNode = childPackageNode;
-                    }
-                }
-                packageNode.count++;
-            } else if (outputStyle == OutputStyle.FLAT) {
-                IntHolder count = packageFieldCount.get(packageName);
-                if (count == null) {
-                    count = new IntHolder();
-                    packageFieldCount.put(packageName, count);
-                }
-                count.value++;
-            }
+                    }, pool);
         }
+        generate(dexData, dexData.getFieldCountsByType(), dexData.getMethodCountsByType(),
+                declared, includeClasses, packageFilter, filter);
+    }
+
+    /**
+     * Adds up per-type member counts.  Counts come per defining class
+     * straight from the id tables, so each class's package name is worked
+     * out once rather than once per member.
+     *
+     * Whether a field or method is defined or only referenced depends on
+     * nothing but its defining class, so filtering just skips the types
+     * on the wrong side of DexData.isInternalType().
+     */
+    private void generate(
+            DexData dexData, int[] fieldCounts, int[] methodCounts, int[][] declared,
+            boolean includeClasses, String packageFilter, Filter filter) {
+        for (int typeIdx = 0; typeIdx < methodCounts.length; typeIdx++) {
+            int fields = fieldCounts != null ? fieldCounts[typeIdx] : 0;
+            int methods = methodCounts[typeIdx];
+            if (fields == 0 && methods == 0) {
+                continue;
+            }
 
-        MethodRef[] methodRefs = getMethodRefs(dexData, filter);
+            if (filter != Filter.ALL &&
+                    dexData.isInternalType(typeIdx) != (filter == Filter.DEFINED_ONLY)) {
+                filteredTypeCount++;
+                filteredFieldCount += fields;
+                filteredMethodCount += methods;
+                continue;
+            }
 
-        for (MethodRef methodRef : methodRefs) {
-            String classDescriptor = methodRef.getDeclClassName();
-            String packageName = includeClasses ?
-                    Output.descriptorToDot(classDescriptor).replace('$', '.') :
-                    Output.packageNameOnly(classDescriptor);
+            String packageName = packageName(dexData.getTypeDescriptor(typeIdx), includeClasses);
             if (packageFilter != null &&
                     !packageName.startsWith(packageFilter)) {
                 continue;
             }
-            overallMethodCount++;
-            if (outputStyle == OutputStyle.TREE) {
-                String packageNamePieces[] = packageName.split("\\.");
-                Node packageNode = packageMethodTree;
-                for (int i = 0; i < packageNamePieces.length && i < maxDepth; i++) {
-                    packageNode.count++;
-                    String name = packageNamePieces[i];
-                    if (packageNode.children.containsKey(name)) {
-                        packageNode = packageNode.children.get(name);
-                    } else {
-                        Node childPackageNode = new Node();
-                        if (name.length() == 0) {
-                            // This method is declared in a class that is part of the default package.
-                            // Typical examples are methods that operate on arrays of primitive data types.
-                            name = "<default>";
-                        }
-                        packageNode.children.put(name, childPackageNode);
-                        packageNode = childPackageNode;
-                    }
-                }
-                packageNode.count++;
-            } else if (outputStyle == OutputStyle.FLAT) {
-                IntHolder count = packageMethodCount.get(packageName);
-                if (count == null) {
-                    count = new IntHolder();
-                    packageMethodCount.put(packageName, count);
-                }
-                count.value++;
+            overallFieldCount += fields;
+            overallMethodCount += methods;
+            packages.add(packageName, fields, methods);
+            if (declared != null) {
+                addDeclared(packageName, declared, typeIdx);
             }
         }
     }
 
-    private static MethodRef[] getMethodRefs(DexData dexData, Filter filter) {
-        MethodRef[] methodRefs = dexData.getMethodRefs();
-//        out.println("Read in " + methodRefs.length + " method IDs.");
-        if (filter == Filter.ALL) {
-            return methodRefs;
+    private void addDeclared(String packageName, int[][] declared, int typeIdx) {
+        int total = 0;
+        for (int[] column : declared) {
+            total |= column[typeIdx];
         }
-
-        ClassRef[] externalClassRefs = dexData.getExternalReferences();
-        out.println("Read in " + externalClassRefs.length +
-                " external class references.");
-        Set<MethodRef> externalMethodRefs = new HashSet<MethodRef>();
-        for (ClassRef classRef : externalClassRefs) {
-            Collections.addAll(externalMethodRefs, classRef.getMethodArray());
+        if (total == 0) {
+            return;
         }
-        out.println("Read in " + externalMethodRefs.size() +
-                " external method references.");
-        List<MethodRef> filteredMethodRefs = new ArrayList<MethodRef>();
-        for (MethodRef methodRef : methodRefs) {
-            boolean isExternal = externalMethodRefs.contains(methodRef);
-            if ((filter == Filter.DEFINED_ONLY && !isExternal) ||
-                    (filter == Filter.REFERENCED_ONLY && isExternal)) {
-                filteredMethodRefs.add(methodRef);
-            }
+        if (packageName.length() == 0) {
+            packageName = "<no package>";
+        }
+        int[] members = declaredCount.get(packageName);
+        if (members == null) {
+            members = new int[4];
+            declaredCount.put(packageName, members);
+        }
+        for (int column = 0; column < 4; column++) {
+            members[column] += declared[column][typeIdx];
         }
-        out.println("Filtered to " + filteredMethodRefs.size() + " " +
-                (filter == Filter.DEFINED_ONLY ? "defined" : "referenced") +
-                " method IDs.");
-        return filteredMethodRefs.toArray(
-                new MethodRef[filteredMethodRefs.size()]);
     }
 
-    private static FieldRef[] getFieldRefs(DexData dexData) {
-        FieldRef[] fieldRefs = dexData.getFieldRefs();
-//        out.println("Read in " + fieldRefs.length + " field IDs.");
-        return fieldRefs;
+    private static String packageName(String classDescriptor, boolean includeClasses) {
+        return PackageNameCache.get(includeClasses).packageName(classDescriptor);
     }
 }
@@ -18,181 +18,941 @@ import com.android.dexdeps.DexData;
 import com.android.dexdeps.DexDataException;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
 import java.util.zip.ZipFile;
 
 public class Main {
+    /** method_ids and field_ids are indexed by 16-bit values. */
+    private static final int ID_LIMIT = 65536;
+
     private boolean diffMode;
+    private boolean summaryMode;
+    private boolean printStats;
     private boolean includeClasses;
+    private boolean useTempFiles;
+    private boolean watchMode;
+    private boolean classData;
+    private boolean parallelNames;
     private String packageFilter;
     private int maxDepth = Integer.MAX_VALUE;
+    private int threads = 1;
+    private int jobs = 1;
+    private int maxDexes = 16;
+    private DexDiff.Level diffLevel = DexDiff.Level.PACKAGE;
+    private int diffTolerance = 2;
+    private String batchManifest;
+    private String saveSnapshot;
+    private String againstSnapshot;
+    private String cacheDir;
+    private long cacheSize = 256L << 20;
+    private ResultCache resultCache;
+    private Profile profile;
+    private long heapBudget;
+    private SpillStore spill;
+    // per-dex counts of this run by cache key, so each distinct dex is counted once
+    private final ConcurrentHashMap<String, FutureTask<DexFieldMethodCounts>> dexCounts =
+            new ConcurrentHashMap<String, FutureTask<DexFieldMethodCounts>>();
+    private final AtomicInteger dexReuses = new AtomicInteger();
+    // one pool per --threads value, kept for later runs in a daemon
+    private static final Map<Integer, ForkJoinPool> pools = new HashMap<Integer, ForkJoinPool>();
     private DexFieldMethodCounts.Filter filter = DexFieldMethodCounts.Filter.ALL;
     private DexFieldMethodCounts.OutputStyle outputStyle = DexFieldMethodCounts.OutputStyle.FLAT;
 
-    public static class IntFour {
-        public int first;
-        public int second;
-        public int three;
-        public int four;
+    /** Relative file names are taken against this; null for our own. */
+    private final File workingDir;
+    private int daemonPort;
+    private int connectPort;
 
-        public IntFour(int first, int second, int three, int four) {
-            this.first = first;
-            this.second = second;
-            this.three = three;
-            this.four = four;
-        }
+    public Main() {
+        this(null);
+    }
+
+    /**
+     * @param workingDir the directory relative file names are in, when
+     *     run on behalf of a --connect client
+     */
+    Main(File workingDir) {
+        this.workingDir = workingDir;
     }
 
     public static void main(String[] args) {
         Main main = new Main();
-        main.run(args);
+        int status = main.run(args);
+        if (status != 0) {
+            System.exit(status);
+        }
     }
 
-    void run(String[] args) {
+    /**
+     * Runs one command line.
+     *
+     * @return the exit status
+     */
+    int run(String[] args) {
+        int status = 0;
         try {
             String[] inputFileNames = parseArgs(args);
-            if (diffMode) {
+            if (daemonPort != 0) {
+                Daemon.serve(daemonPort);
+                return 0;
+            }
+            if (connectPort != 0) {
+                int forwarded = Daemon.forward(connectPort, withoutConnect(args));
+                if (forwarded >= 0) {
+                    return forwarded;
+                }
+                // no daemon; count it ourselves
+            }
+            if (cacheDir != null) {
+                resultCache = new ResultCache(resolve(cacheDir), cacheSize);
+            }
+            if (heapBudget > 0) {
+                spill = new SpillStore(heapBudget, outputStyle, maxDepth);
+            }
+            if (summaryMode) {
+                int overallFieldCount = 0;
+                int overallMethodCount = 0;
+                for (String fileName : collectFileNames(inputFileNames)) {
+                    System.out.println("Processing " + fileName);
+                    System.out.println("fields\t\t\tmethods\t\t\tdex");
+
+                    for (Map.Entry<String, DexData> e : openHeaders(fileName).entrySet()) {
+                        DexData dexData = e.getValue();
+                        int fields = dexData.getFieldIdsSize();
+                        int methods = dexData.getMethodIdsSize();
+                        System.out.printf("%6d %5.1f%%\t\t%6d %5.1f%%\t\t%s\n",
+                                fields, fields * 100.0 / ID_LIMIT,
+                                methods, methods * 100.0 / ID_LIMIT,
+                                e.getKey());
+                        overallFieldCount += fields;
+                        overallMethodCount += methods;
+                    }
+                }
+                System.out.println("Overall field count: " + overallFieldCount);
+                System.out.println("Overall method count: " + overallMethodCount);
+            } else if (diffMode) {
                 // inputFileNames.length must 2
-                DexFieldMethodCounts[] countDiff = new DexFieldMethodCounts[2];
+                diff(collectFileNames(inputFileNames[0]).get(0),
+                        collectFileNames(inputFileNames[1]).get(0));
+            } else if (againstSnapshot != null) {
+                diffSnapshot(collectFileNames(inputFileNames));
+            } else if (batchManifest != null) {
+                List<String> fileNames = readManifest(batchManifest);
+                fileNames.addAll(collectFileNames(inputFileNames));
+                if (!countBatch(fileNames)) {
+                    status = 1;
+                }
+            } else if (watchMode) {
+                new Watcher(this, outputStyle, maxDepth).watch(inputFileNames);
+            } else {
+                countFiles(collectFileNames(inputFileNames));
+            }
+
+            if (printStats) {
+                System.err.println(PackageNameCache.get(includeClasses).stats());
+                if (resultCache != null) {
+                    System.err.println(resultCache.stats());
+                }
+                if (dexReuses.get() > 0) {
+                    System.err.println(dexReuses.get() + " duplicate dexes counted once");
+                }
+            }
+            if (profile != null) {
+                profile.print(System.err);
+            }
+            if (spill != null) {
+                System.err.println(spill.stats());
+            }
+        } catch (UsageException ue) {
+            usage();
+            return 2;
+        } catch (IOException ioe) {
+            if (ioe.getMessage() != null) {
+                System.err.println("Failed: " + ioe);
+            }
+            return 1;
+        } catch (DexDataException dde) {
+            /* a message was already reported, just bail quietly */
+            return 1;
+        }
+        return status;
+    }
+
+    /**
+     * Returns the file a name given on the command line refers to.
+     */
+    File resolve(String fileName) {
+        File file = new File(fileName);
+        return workingDir == null || file.isAbsolute() ? file : new File(workingDir, fileName);
+    }
 
-                for (int i = 0; i < inputFileNames.length; ++i) {
-                    System.out.println("Processing " + inputFileNames[i]);
+    private static String[] withoutConnect(String[] args) {
+        List<String> forwarded = new ArrayList<String>();
+        for (String arg : args) {
+            if (!arg.equals("--connect") && !arg.startsWith("--connect=")) {
+                forwarded.add(arg);
+            }
+        }
+        return forwarded.toArray(new String[forwarded.size()]);
+    }
 
-                    countDiff[i] = new DexFieldMethodCounts(outputStyle);
+    /**
+     * Counts and prints each input file, followed by the totals over all
+     * of them.  With --jobs several files are counted at once, while at
+     * most --max-dexes dex files are held in memory; the output is still
+     * printed in input order.
+     */
+    private void countFiles(List<String> fileNames) throws IOException {
+        int overallFieldCount = 0;
+        int overallMethodCount = 0;
+        DexFieldMethodCounts total = saveSnapshot == null ? null :
+                new DexFieldMethodCounts(outputStyle, maxDepth);
 
-                    for (String fileName : collectFileNames(inputFileNames[i])) {
-                        DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle);
-                        List<RandomAccessFile> dexFiles = openInputFiles(fileName);
+        if (jobs <= 1 || fileNames.size() <= 1) {
+            for (String fileName : fileNames) {
+                System.out.println("Processing " + fileName);
+                DexFieldMethodCounts counts = count(fileName);
+                aggregate(fileName, counts);
+                render(fileName, counts);
+                overallFieldCount += counts.getOverallFieldCount();
+                overallMethodCount += counts.getOverallMethodCount();
+                if (total != null) {
+                    total.putPackageCount(counts.packageCount);
+                }
+            }
+        } else {
+            ExecutorService executor = Executors.newFixedThreadPool(jobs);
+            final Semaphore dexPermits = new Semaphore(maxDexes, true);
+            List<Future<SpillStore.Held>> results = new ArrayList<Future<SpillStore.Held>>();
 
-                        for (RandomAccessFile dexFile : dexFiles) {
-                            DexData dexData = new DexData(dexFile);
-                            dexData.load();
-                            counts.generate2(dexData, includeClasses, packageFilter, maxDepth, filter);
-                            dexFile.close();
+            try {
+                for (final String fileName : fileNames) {
+                    results.add(executor.submit(new Callable<SpillStore.Held>() {
+                        @Override
+                        public SpillStore.Held call() throws Exception {
+                            int permits = Math.min(countDexFiles(fileName), maxDexes);
+                            dexPermits.acquire(permits);
+                            try {
+                                DexFieldMethodCounts counts = count(fileName);
+                                if (spill != null) {
+                                    // aggregated once it is its turn to print
+                                    return spill.hold(counts);
+                                }
+                                aggregate(fileName, counts);
+                                return new SpillStore.Held(counts);
+                            } finally {
+                                dexPermits.release(permits);
+                            }
                         }
-                        counts.calcPackageCount();
+                    }));
+                }
 
-                        countDiff[i].putPackageCount(counts.packageCount);
-                        countDiff[i].overallFieldCount += counts.getOverallFieldCount();
-                        countDiff[i].overallMethodCount = counts.getOverallMethodCount();
+                for (int i = 0; i < fileNames.size(); i++) {
+                    DexFieldMethodCounts counts = await(results.get(i)).take();
+                    if (spill != null) {
+                        aggregate(fileNames.get(i), counts);
+                    }
+                    System.out.println("Processing " + fileNames.get(i));
+                    render(fileNames.get(i), counts);
+                    overallFieldCount += counts.getOverallFieldCount();
+                    overallMethodCount += counts.getOverallMethodCount();
+                    if (total != null) {
+                        total.putPackageCount(counts.packageCount);
                     }
-
-//                    countDiff[i].output();
-                    System.out.println("Overall field count: " + countDiff[i].overallFieldCount);
-                    System.out.println("Overall method count: " + countDiff[i].overallMethodCount);
                 }
+            } finally {
+                executor.shutdownNow();
+            }
+        }
 
-                // 求差
-                TreeMap<String, IntFour> packageDiff = new TreeMap<String, IntFour>();
-                for (Map.Entry<String, DexFieldMethodCounts.IntPair> e : countDiff[0].packageCount.entrySet()) {
-                    String packageName = e.getKey();
-                    DexFieldMethodCounts.IntPair pair0 = e.getValue();
+        System.out.println("Overall field count: " + overallFieldCount);
+        System.out.println("Overall method count: " + overallMethodCount);
 
-                    if (countDiff[1].packageCount.get(packageName) != null) {
-                        DexFieldMethodCounts.IntPair pair1 = countDiff[1].packageCount.get(packageName);
-                        if (!pair0.equals(pair1)) {
-                            packageDiff.put(packageName, new IntFour(pair0.first, pair1.first, pair0.second, pair1.second));
-                        }
+        if (total != null) {
+            Snapshot.write(resolve(saveSnapshot), total.packageCount,
+                    overallFieldCount, overallMethodCount, includeClasses);
+        }
+    }
 
-                        countDiff[1].packageCount.remove(packageName);
-                    } else {
-                        packageDiff.put(packageName, new IntFour(pair0.first, 0, pair0.second, 0));
-                    }
+    /**
+     * Prints an input's counts, after aggregate().
+     */
+    void render(String fileName, DexFieldMethodCounts counts) {
+        Profile.Timer timer = profile == null ? null : Profile.start();
+        DexEvents.Render event = DexEvents.beginRender();
+        counts.output();
+        printFilterStats(counts);
+        DexEvents.endRender(event, fileName, outputStyle.name(), counts.packageCount.size());
+        if (timer != null) {
+            profile.input(fileName).add(Profile.OUTPUT, timer);
+        }
+    }
+
+    /**
+     * Rolls an input's counts up into packages.
+     */
+    private void aggregate(String fileName, DexFieldMethodCounts counts) {
+        Profile.Timer timer = profile == null ? null : Profile.start();
+        DexEvents.Aggregate event = DexEvents.beginAggregate();
+        counts.calcPackageCount();
+        DexEvents.endAggregate(event, fileName, counts);
+        if (timer != null) {
+            profile.input(fileName).add(Profile.AGGREGATE, timer);
+        }
+    }
+
+    /**
+     * Counts each input and writes its results as a line of JSON, in the
+     * order the inputs finish.  An input that can't be counted gets an
+     * error line and the rest of the batch carries on.
+     *
+     * @return false if any input failed
+     */
+    private boolean countBatch(List<String> fileNames) throws IOException {
+        BatchWriter out = new BatchWriter(System.out);
+        int failures = 0;
+
+        if (jobs <= 1 || fileNames.size() <= 1) {
+            for (int i = 0; i < fileNames.size(); i++) {
+                BatchResult result = countForBatch(i, fileNames.get(i));
+                if (!write(result, out)) {
+                    failures++;
                 }
-                for (Map.Entry<String, DexFieldMethodCounts.IntPair> e : countDiff[1].packageCount.entrySet()) {
-                    String packageName = e.getKey();
-                    DexFieldMethodCounts.IntPair pair1 = e.getValue();
+            }
+            return failures == 0;
+        }
 
-                    packageDiff.put(packageName, new IntFour(0, pair1.first, 0, pair1.second));
+        ExecutorService executor = Executors.newFixedThreadPool(jobs);
+        CompletionService<BatchResult> results = new ExecutorCompletionService<BatchResult>(executor);
+        final Semaphore dexPermits = new Semaphore(maxDexes, true);
+        try {
+            for (int i = 0; i < fileNames.size(); i++) {
+                final int index = i;
+                final String fileName = fileNames.get(i);
+                results.submit(new Callable<BatchResult>() {
+                    @Override
+                    public BatchResult call() throws Exception {
+                        int permits;
+                        try {
+                            permits = Math.min(countDexFiles(fileName), maxDexes);
+                        } catch (IOException ioe) {
+                            return new BatchResult(index, fileName, null, 0, ioe.toString());
+                        }
+                        dexPermits.acquire(permits);
+                        try {
+                            return countForBatch(index, fileName);
+                        } finally {
+                            dexPermits.release(permits);
+                        }
+                    }
+                });
+            }
+
+            for (int i = 0; i < fileNames.size(); i++) {
+                BatchResult result;
+                try {
+                    result = await(results.take());
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
                 }
+                if (!write(result, out)) {
+                    failures++;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        return failures == 0;
+    }
 
-                // 输出
-                if (packageDiff.size() > 0) {
-                    System.out.println("fields\t\t\t\tmethods\t\t\t\tpackage/class name");
+    private BatchResult countForBatch(int index, String fileName) {
+        long start = System.nanoTime();
+        try {
+            DexFieldMethodCounts counts = count(fileName);
+            aggregate(fileName, counts);
+            return new BatchResult(index, fileName, counts, System.nanoTime() - start, null);
+        } catch (IOException ioe) {
+            return new BatchResult(index, fileName, null, 0, ioe.toString());
+        } catch (DexDataException dde) {
+            // the details went to stderr
+            return new BatchResult(index, fileName, null, 0, "not a valid DEX file");
+        }
+    }
 
-                    int fieldsDiff = 0;
-                    int methodsDiff = 0;
-                    for (Map.Entry<String, IntFour> e : packageDiff.entrySet()) {
-                        String packageName = e.getKey();
-                        IntFour pair = e.getValue();
+    private boolean write(BatchResult result, BatchWriter out) throws IOException {
+        Profile.Timer timer = profile == null ? null : Profile.start();
+        DexEvents.Render event = DexEvents.beginRender();
+        boolean written = result.write(out);
+        DexEvents.endRender(event, result.fileName, "JSON",
+                result.counts == null ? 0 : result.counts.packageCount.size());
+        if (timer != null) {
+            profile.input(result.fileName).add(Profile.OUTPUT, timer);
+        }
+        return written;
+    }
 
-                        fieldsDiff += -pair.first + pair.second;
-                        methodsDiff += -pair.three + pair.four;
-                        System.out.printf("%5s|%-5s\t\t\t%5s|%-5s\t\t\t%s\n", pair.first, pair.second, pair.three, pair.four, packageName);
-                    }
+    /**
+     * The outcome of counting one input of a batch.
+     */
+    private static class BatchResult {
+        final int index;
+        final String fileName;
+        final DexFieldMethodCounts counts;
+        final long nanos;
+        final String error;
+
+        BatchResult(int index, String fileName, DexFieldMethodCounts counts, long nanos,
+                String error) {
+            this.index = index;
+            this.fileName = fileName;
+            this.counts = counts;
+            this.nanos = nanos;
+            this.error = error;
+        }
+
+        /**
+         * @return false if this is a failure
+         */
+        boolean write(BatchWriter out) throws IOException {
+            if (error != null) {
+                out.writeError(index, fileName, error);
+                return false;
+            }
+            out.write(index, fileName, counts, nanos);
+            return true;
+        }
+    }
 
-                    System.out.println("Overall fields diff count: " + fieldsDiff);
-                    System.out.println("Overall methods diff count: " + methodsDiff);
-                } else {
-                    System.out.println("fields & methods is same");
+    /**
+     * Reads a --batch manifest: one input per line, directories
+     * expanded.  Blank lines and lines starting with '#' are skipped.
+     */
+    private List<String> readManifest(String manifest) throws IOException {
+        List<String> inputFileNames = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                new FileInputStream(resolve(manifest)), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    inputFileNames.add(line);
                 }
+            }
+        } finally {
+            in.close();
+        }
+        return collectFileNames(inputFileNames.toArray(new String[inputFileNames.size()]));
+    }
+
+    /**
+     * Diffs the inputs, counted together, against a saved snapshot.  Only
+     * the inputs are parsed; the snapshot is read in place as the diff
+     * walks it.
+     */
+    private void diffSnapshot(List<String> fileNames) throws IOException {
+        Snapshot snapshot = Snapshot.open(resolve(againstSnapshot));
+        if (snapshot.includesClasses() != includeClasses) {
+            throw new IOException("snapshot " + againstSnapshot + " was saved " +
+                    (snapshot.includesClasses() ? "with" : "without") +
+                    " --include-classes");
+        }
+
+        DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+        for (String fileName : fileNames) {
+            DexFieldMethodCounts fileCounts = count(fileName);
+            fileCounts.calcPackageCount();
+            counts.putPackageCount(fileCounts.packageCount);
+            counts.overallFieldCount += fileCounts.getOverallFieldCount();
+            counts.overallMethodCount += fileCounts.getOverallMethodCount();
+        }
 
+        System.out.println("Processing " + againstSnapshot);
+        System.out.println("Overall field count: " + snapshot.getOverallFieldCount());
+        System.out.println("Overall method count: " + snapshot.getOverallMethodCount());
+        for (String fileName : fileNames) {
+            System.out.println("Processing " + fileName);
+        }
+        System.out.println("Overall field count: " + counts.getOverallFieldCount());
+        System.out.println("Overall method count: " + counts.getOverallMethodCount());
+
+        DexEvents.Diff event = DexEvents.beginDiff();
+        int rows;
+        try {
+            rows = new DexDiff(diffTolerance, System.out).diffCounts(snapshot, counts.packageCount);
+        } catch (IllegalStateException ise) {
+            // the body is only decoded as the diff walks it
+            throw new IOException(againstSnapshot + ": " + ise.getMessage(), ise);
+        }
+        DexEvents.endDiff(event, againstSnapshot, fileNames.toString(), diffLevel,
+                snapshot.size() + counts.packageCount.size(), rows);
+    }
+
+    /**
+     * Prints what changed between two inputs.  Both sides are loaded and
+     * counted at the same time; the comparison itself is one pass over
+     * each side's sorted results.
+     */
+    private void diff(String before, String after) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<DiffSide> left = executor.submit(diffSide(before));
+            Future<DiffSide> right = executor.submit(diffSide(after));
+            DiffSide[] sides = { await(left), await(right) };
+
+            for (DiffSide side : sides) {
+                System.out.println("Processing " + side.fileName);
+                System.out.println("Overall field count: " + side.fieldCount);
+                System.out.println("Overall method count: " + side.methodCount);
+            }
+
+            DexEvents.Diff event = DexEvents.beginDiff();
+            DexDiff diff = new DexDiff(diffTolerance, System.out);
+            int items, rows;
+            if (diffLevel == DexDiff.Level.MEMBER) {
+                items = sides[0].members.size() + sides[1].members.size();
+                rows = diff.diffMembers(sides[0].members, sides[1].members);
             } else {
-                int overallFieldCount = 0;
-                int overallMethodCount = 0;
-                for (String fileName : collectFileNames(inputFileNames)) {
-                    System.out.println("Processing " + fileName);
-                    DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle);
-                    List<RandomAccessFile> dexFiles = openInputFiles(fileName);
-
-                    for (RandomAccessFile dexFile : dexFiles) {
-                        DexData dexData = new DexData(dexFile);
-                        dexData.load();
-                        counts.generate2(dexData, includeClasses, packageFilter, maxDepth, filter);
-                        dexFile.close();
-                    }
+                items = sides[0].packageCount.size() + sides[1].packageCount.size();
+                rows = diff.diffCounts(sides[0].packageCount, sides[1].packageCount);
+            }
+            DexEvents.endDiff(event, before, after, diffLevel, items, rows);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * One input of a diff: its counts and, at MEMBER level, its members.
+     */
+    private static class DiffSide {
+        final String fileName;
+        final int fieldCount;
+        final int methodCount;
+        final Map<String, DexFieldMethodCounts.IntPair> packageCount;
+        final DexDiff.Members members;
+
+        DiffSide(String fileName, DexFieldMethodCounts counts,
+                Map<String, DexFieldMethodCounts.IntPair> packageCount, DexDiff.Members members) {
+            this.fileName = fileName;
+            this.fieldCount = counts.getOverallFieldCount();
+            this.methodCount = counts.getOverallMethodCount();
+            this.packageCount = packageCount;
+            this.members = members;
+        }
+    }
+
+    private Callable<DiffSide> diffSide(final String fileName) {
+        return new Callable<DiffSide>() {
+            @Override
+            public DiffSide call() throws IOException {
+                if (diffLevel != DexDiff.Level.MEMBER) {
+                    DexFieldMethodCounts counts = count(fileName);
                     counts.calcPackageCount();
-                    counts.output();
-                    overallFieldCount = counts.getOverallFieldCount();
-                    overallMethodCount = counts.getOverallMethodCount();
+                    return new DiffSide(fileName, counts, spill == null ? counts.packageCount :
+                            spill.hold(counts.packageCount, includeClasses), null);
                 }
-                System.out.println("Overall field count: " + overallFieldCount);
-                System.out.println("Overall method count: " + overallMethodCount);
+
+                // the loaded dexes are kept to name the changed members
+                DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+                List<DexData> dexes = new ArrayList<DexData>();
+                for (ByteBuffer dexFile : openInputFiles(fileName)) {
+                    DexData dexData = new DexData(dexFile);
+                    dexData.load();
+                    if (parallelNames) {
+                        // the fingerprints go through every type, field and method name
+                        dexData.decodeNames(pool());
+                    }
+                    counts.generate2(dexData, includeClasses, packageFilter, filter);
+                    dexes.add(dexData);
+                }
+                return new DiffSide(fileName, counts, counts.packageCount,
+                        new DexDiff.Members(dexes, filter, packageFilter, includeClasses));
             }
-        } catch (UsageException ue) {
-            usage();
-            System.exit(2);
-        } catch (IOException ioe) {
-            if (ioe.getMessage() != null) {
-                System.err.println("Failed: " + ioe);
+        };
+    }
+
+    private void printFilterStats(DexFieldMethodCounts counts) {
+        if (printStats && filter != DexFieldMethodCounts.Filter.ALL) {
+            System.err.println("Filtered out " + counts.filteredFieldCount + " fields and " +
+                    counts.filteredMethodCount + " methods of " + counts.filteredTypeCount + " " +
+                    (filter == DexFieldMethodCounts.Filter.DEFINED_ONLY ? "referenced" : "defined") +
+                    " classes.");
+        }
+    }
+
+    /**
+     * Waits for a file's result, rethrowing whatever stopped it.
+     */
+    private static <T> T await(Future<T> result) throws IOException {
+        try {
+            return result.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
             }
-            System.exit(1);
-        } catch (DexDataException dde) {
-            /* a message was already reported, just bail quietly */
-            System.exit(1);
+            throw new IOException(cause);
         }
     }
 
     /**
-     * Opens an input file, which could be a .dex or a .jar/.apk with a
-     * classes.dex inside.  If the latter, we extract the contents to a
-     * temporary file.
+     * Returns how many dex files openInputFiles() will return for the
+     * input, without reading any of them.
      */
-    List<RandomAccessFile> openInputFiles(String fileName) throws IOException {
-        List<RandomAccessFile> dexFiles = new ArrayList<RandomAccessFile>();
+    int countDexFiles(String fileName) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(resolve(fileName));
+        } catch (ZipException ze) {
+            return 1;
+        }
 
-        openInputFileAsZip(fileName, dexFiles);
-        if (dexFiles.size() == 0) {
-            File inputFile = new File(fileName);
-            RandomAccessFile dexFile = new RandomAccessFile(inputFile, "r");
-            dexFiles.add(dexFile);
+        try {
+            int count = 0;
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (entry.getName().matches("classes.*\\.dex")) {
+                    count++;
+                }
+            }
+            return Math.max(count, 1);
+        } finally {
+            zipFile.close();
         }
+    }
 
+    /**
+     * Counts every dex in the input file.  With --threads the dexes are
+     * loaded and counted concurrently and the per-dex counts merged.
+     */
+    DexFieldMethodCounts count(final String fileName) throws IOException {
+        final Profile.Record input = profile == null ? null : profile.input(fileName);
+        Profile.Timer started = input == null ? null : Profile.start();
+        if (spill != null) {
+            // one dex at a time, each dropped once counted; opening is
+            // timed as part of each dex
+            final DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+            forEachDexFile(fileName, new DexConsumer() {
+                private int index;
+
+                @Override
+                public void accept(ByteBuffer dexFile) throws IOException {
+                    countDex(fileName, index, dexFile, counts,
+                            input == null ? null : input.dex("dex " + (index + 1)));
+                    index++;
+                }
+            });
+            if (input != null) {
+                input.counted(started);
+            }
+            return counts;
+        }
+
+        DexEvents.InputOpen opened = DexEvents.beginOpen();
+        List<ByteBuffer> dexFiles = openInputFiles(fileName);
+        if (opened != null) {
+            long bytes = 0;
+            for (ByteBuffer dexFile : dexFiles) {
+                bytes += dexFile.remaining();
+            }
+            DexEvents.endOpen(opened, fileName, dexFiles.size(), bytes);
+        }
+        Profile.Record[] dexes = new Profile.Record[dexFiles.size()];
+        if (input != null) {
+            input.add(Profile.OPEN, started);
+            for (int i = 0; i < dexes.length; i++) {
+                dexes[i] = input.dex("dex " + (i + 1));
+            }
+            started = Profile.start();
+        }
+
+        DexFieldMethodCounts counts;
+        if (threads <= 1 || dexFiles.size() <= 1) {
+            counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+            for (int i = 0; i < dexFiles.size(); i++) {
+                countDex(fileName, i, dexFiles.get(i), counts, dexes[i]);
+            }
+        } else {
+            try {
+                counts = pool().invoke(new CountTask(fileName, dexFiles, dexes, 0, dexFiles.size()));
+            } catch (UncheckedIOException uioe) {
+                throw uioe.getCause();
+            }
+        }
+
+        if (input != null) {
+            input.counted(started);
+        }
+        return counts;
+    }
+
+    private ForkJoinPool pool() {
+        synchronized (pools) {
+            ForkJoinPool pool = pools.get(threads);
+            if (pool == null) {
+                pool = new ForkJoinPool(threads);
+                pools.put(threads, pool);
+            }
+            return pool;
+        }
+    }
+
+    /**
+     * Adds one dex's counts.  A dex already seen in this run, going by
+     * its signature and size, isn't counted again unless counting it
+     * failed, and with --cache-dir counts are looked up on disk before the
+     * dex is parsed.
+     */
+    private void countDex(final String fileName, int index, ByteBuffer dexFile,
+            DexFieldMethodCounts counts, final Profile.Record dex) throws IOException {
+        if (dex != null) {
+            dex.bytes = dexFile.remaining();
+        }
+        final DexData dexData = new DexData(dexFile);
+        dexData.loadHeader();
+        if (dex != null) {
+            dex.fields = dexData.getFieldIdsSize();
+            dex.methods = dexData.getMethodIdsSize();
+        }
+        final String dexName = "dex " + (index + 1);
+        final DexData.LoadListener listener =
+                DexEvents.loadListener(fileName, dexName, dexData, dex);
+        final String options = countOptions();
+        // a truncated copy still carries the whole dex's signature
+        final String key = ResultCache.key(dexData.getSignature(), options +
+                ",size=" + dexData.getFileSize() + "/" + dexFile.remaining());
+        if (key == null) {
+            load(dexData, listener);
+            generate(fileName, dexName, dexData, counts, dex);
+            return;
+        }
+
+        FutureTask<DexFieldMethodCounts> task = new FutureTask<DexFieldMethodCounts>(
+                new Callable<DexFieldMethodCounts>() {
+                    @Override
+                    public DexFieldMethodCounts call() throws IOException {
+                        Profile.Timer timer = dex == null ? null : Profile.start();
+                        DexEvents.Count event = resultCache == null ? null : DexEvents.beginCount();
+                        DexFieldMethodCounts dexCounts = resultCache == null ? null :
+                                resultCache.get(key, options, outputStyle, maxDepth);
+                        if (timer != null && resultCache != null) {
+                            dex.add(Profile.CACHE, timer);
+                        }
+                        if (dexCounts != null) {
+                            DexEvents.endCount(event, fileName, dexName,
+                                    dexData.getFieldIdsSize(), dexData.getMethodIdsSize(), true);
+                        } else {
+                            load(dexData, listener);
+                            dexCounts = new DexFieldMethodCounts(outputStyle, maxDepth);
+                            generate(fileName, dexName, dexData, dexCounts, dex);
+                            if (resultCache != null) {
+                                timer = dex == null ? null : Profile.start();
+                                resultCache.put(key, options, dexCounts);
+                                if (timer != null) {
+                                    dex.add(Profile.CACHE, timer);
+                                }
+                            }
+                        }
+                        return dexCounts;
+                    }
+                });
+        if (spill != null) {
+            // nothing is kept from one dex to the next; repeats are only
+            // found through --cache-dir
+            task.run();
+            counts.merge(await(task));
+            return;
+        }
+        FutureTask<DexFieldMethodCounts> counted = dexCounts.putIfAbsent(key, task);
+        if (counted == null) {
+            counted = task;
+            task.run();
+        } else {
+            dexReuses.incrementAndGet();
+        }
+        boolean merged = false;
+        try {
+            counts.merge(await(counted));
+            merged = true;
+        } finally {
+            if (!merged) {
+                // a later copy of the dex gets counted afresh
+                dexCounts.remove(key, counted);
+            }
+        }
+    }
+
+    /**
+     * Counts one dex on its own, for --watch.
+     */
+    DexFieldMethodCounts countDex(String fileName, int index, ByteBuffer dexFile)
+            throws IOException {
+        DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+        countDex(fileName, index, dexFile, counts, null);
+        return counts;
+    }
+
+    /**
+     * Drops the per-dex counts kept so far, which countDex() would
+     * otherwise hold on to for the rest of the run.
+     */
+    void forgetDexes() {
+        dexCounts.clear();
+    }
+
+    /**
+     * Loads a dex, only as far as counting needs under --heap-budget.
+     */
+    private void load(DexData dexData, DexData.LoadListener listener) throws IOException {
+        if (spill != null) {
+            dexData.loadCountsOnly(listener);
+        } else {
+            dexData.load(listener);
+        }
+    }
+
+    private void generate(String fileName, String dexName, DexData dexData,
+            DexFieldMethodCounts counts, Profile.Record dex) {
+        Profile.Timer timer = dex == null ? null : Profile.start();
+        DexEvents.Count event = DexEvents.beginCount();
+        if (classData) {
+            counts.generateDeclared(dexData, includeClasses, packageFilter, filter,
+                    threads > 1 ? pool() : null);
+        } else {
+            counts.generate2(dexData, includeClasses, packageFilter, filter);
+        }
+        DexEvents.endCount(event, fileName, dexName,
+                dexData.getFieldIdsSize(), dexData.getMethodIdsSize(), false);
+        if (timer != null) {
+            dex.add(Profile.COUNT, timer);
+        }
+    }
+
+    /**
+     * Describes the options that change a dex's counts, as part of its
+     * cache key.
+     */
+    private String countOptions() {
+        return "classes=" + includeClasses + ",filter=" + filter +
+                ",package=" + packageFilter + ",classData=" + classData;
+    }
+
+    /**
+     * Counts a range of an input's dex files, splitting it in half until
+     * only one dex is left.
+     */
+    @SuppressWarnings("serial")   // never serialized
+    private class CountTask extends RecursiveTask<DexFieldMethodCounts> {
+        private final String fileName;
+        private final List<ByteBuffer> dexFiles;
+        private final Profile.Record[] dexes;     // null entries unless --profile
+        private final int from, to;
+
+        CountTask(String fileName, List<ByteBuffer> dexFiles, Profile.Record[] dexes,
+                int from, int to) {
+            this.fileName = fileName;
+            this.dexFiles = dexFiles;
+            this.dexes = dexes;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected DexFieldMethodCounts compute() {
+            if (to - from == 1) {
+                DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+                try {
+                    // each task reads through its own view of the buffer
+                    countDex(fileName, from, dexFiles.get(from).duplicate(), counts, dexes[from]);
+                } catch (IOException ioe) {
+                    throw new UncheckedIOException(ioe);
+                }
+                return counts;
+            }
+
+            int mid = (from + to) >>> 1;
+            CountTask left = new CountTask(fileName, dexFiles, dexes, from, mid);
+            CountTask right = new CountTask(fileName, dexFiles, dexes, mid, to);
+            left.fork();
+            DexFieldMethodCounts counts = right.compute();
+            DexFieldMethodCounts leftCounts = left.join();
+            leftCounts.merge(counts);
+            return leftCounts;
+        }
+    }
+
+    /**
+     * Opens an input file, which could be a .dex or a .jar/.apk with a
+     * classes.dex inside.  A plain .dex is memory-mapped.  Entries of a
+     * zip are mapped in place when STORED, inflated into the heap
+     * otherwise, or extracted to temporary files with --temp-files.
+     */
+    List<ByteBuffer> openInputFiles(String fileName) throws IOException {
+        final List<ByteBuffer> dexFiles = new ArrayList<ByteBuffer>();
+        forEachDexFile(fileName, new DexConsumer() {
+            @Override
+            public void accept(ByteBuffer dexFile) {
+                dexFiles.add(dexFile);
+            }
+        });
         return dexFiles;
     }
 
+    /**
+     * Receives the dex files of an input, one at a time.
+     */
+    interface DexConsumer {
+        void accept(ByteBuffer dexFile) throws IOException;
+    }
+
+    /**
+     * Opens an input's dex files as openInputFiles() does, handing each
+     * to the consumer before the next is read, so that it can be dropped
+     * once done with.
+     */
+    void forEachDexFile(String fileName, DexConsumer consumer) throws IOException {
+        if (openInputFileAsZip(fileName, consumer) == 0) {
+            consumer.accept(mapFile(resolve(fileName)));
+        }
+    }
+
     /**
      * Tries to open an input file as a Zip archive (jar/apk) with a
      * "classes.dex" inside.
+     *
+     * @return the number of dex files found, 0 if not a zip
      */
-    void openInputFileAsZip(String fileName, List<RandomAccessFile> dexFiles) throws IOException {
+    int openInputFileAsZip(String fileName, DexConsumer consumer) throws IOException {
         ZipFile zipFile;
 
         // Try it as a zip file.
         try {
-            zipFile = new ZipFile(fileName);
+            zipFile = new ZipFile(resolve(fileName));
         } catch (FileNotFoundException fnfe) {
             // not found, no point in retrying as non-zip.
             System.err.println("Unable to open '" + fileName + "': " +
@@ -200,46 +960,207 @@ public class Main {
             throw fnfe;
         } catch (ZipException ze) {
             // not a zip
-            return;
+            return 0;
         }
 
-        // Open and add all files matching "classes.*\.dex" in the zip file.
-        for (ZipEntry entry : Collections.list(zipFile.entries())) {
-            if (entry.getName().matches("classes.*\\.dex")) {
-                dexFiles.add(openDexFile(zipFile, entry));
+        int count = 0;
+        StoredEntryMapper storedEntries = null;
+        try {
+            // Open and add all files matching "classes.*\.dex" in the zip file.
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (!entry.getName().matches("classes.*\\.dex")) {
+                    continue;
+                }
+
+                count++;
+                if (useTempFiles) {
+                    consumer.accept(extractDexFile(zipFile, entry));
+                    continue;
+                }
+
+                ByteBuffer mapped = null;
+                if (entry.getMethod() == ZipEntry.STORED) {
+                    if (storedEntries == null) {
+                        storedEntries = new StoredEntryMapper(resolve(fileName).getPath());
+                    }
+                    mapped = storedEntries.map(entry);
+                }
+                consumer.accept(mapped != null ? mapped : openDexFile(zipFile, entry));
+            }
+        } finally {
+            if (storedEntries != null) {
+                storedEntries.close();
             }
+            zipFile.close();
+        }
+        return count;
+    }
+
+    /**
+     * Opens one dex of an input, by the name openHeaders() gives it, the
+     * way openInputFiles() would.
+     */
+    ByteBuffer openDexFile(String fileName, String dexName) throws IOException {
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(resolve(fileName));
+        } catch (ZipException ze) {
+            return mapFile(resolve(fileName));
         }
 
-        zipFile.close();
+        try {
+            ZipEntry entry = zipFile.getEntry(dexName);
+            if (entry == null) {
+                throw new FileNotFoundException(fileName + " has no " + dexName);
+            }
+            if (useTempFiles) {
+                return extractDexFile(zipFile, entry);
+            }
+            if (entry.getMethod() == ZipEntry.STORED) {
+                StoredEntryMapper storedEntries = new StoredEntryMapper(resolve(fileName).getPath());
+                try {
+                    ByteBuffer mapped = storedEntries.map(entry);
+                    if (mapped != null) {
+                        return mapped;
+                    }
+                } finally {
+                    storedEntries.close();
+                }
+            }
+            return openDexFile(zipFile, entry);
+        } finally {
+            zipFile.close();
+        }
     }
 
-    RandomAccessFile openDexFile(ZipFile zipFile, ZipEntry entry) throws IOException {
+    /**
+     * Inflates a zip entry into a heap buffer sized from the entry.
+     */
+    ByteBuffer openDexFile(ZipFile zipFile, ZipEntry entry) throws IOException {
         // We know it's a zip; see if there's anything useful inside.  A
         // failure here results in some type of IOException (of which
         // ZipException is a subclass).
         InputStream zis = zipFile.getInputStream(entry);
 
-        // Create a temp file to hold the DEX data, open it, and delete it
-        // to ensure it doesn't hang around if we fail.
+        try {
+            long size = entry.getSize();
+            if (size < 0 || size > Integer.MAX_VALUE) {
+                // size unknown; let the stream grow as needed
+                ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+                copy(zis, bytes);
+                return ByteBuffer.wrap(bytes.toByteArray());
+            }
+
+            byte[] dexBytes = new byte[(int) size];
+            new DataInputStream(zis).readFully(dexBytes);
+            return ByteBuffer.wrap(dexBytes);
+        } finally {
+            zis.close();
+        }
+    }
+
+    /**
+     * Copies a zip entry into a temporary file and maps it, keeping the
+     * DEX out of the heap.
+     */
+    ByteBuffer extractDexFile(ZipFile zipFile, ZipEntry entry) throws IOException {
+        InputStream zis = zipFile.getInputStream(entry);
+
+        // Create a temp file to hold the DEX data; it is deleted once
+        // mapped so it doesn't hang around.
         File tempFile = File.createTempFile("dexdeps", ".dex");
-        RandomAccessFile dexFile = new RandomAccessFile(tempFile, "rw");
-        tempFile.delete();
+        try {
+            OutputStream out = new FileOutputStream(tempFile);
+            try {
+                copy(zis, out);
+            } finally {
+                out.close();
+                zis.close();
+            }
 
-        // Copy all data from input stream to output file.
+            return mapFile(tempFile);
+        } finally {
+            tempFile.delete();
+        }
+    }
+
+    private static ByteBuffer mapFile(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void copy(InputStream in, OutputStream out) throws IOException {
         byte copyBuf[] = new byte[32768];
         int actual;
 
         while (true) {
-            actual = zis.read(copyBuf);
+            actual = in.read(copyBuf);
             if (actual == -1)
                 break;
 
-            dexFile.write(copyBuf, 0, actual);
+            out.write(copyBuf, 0, actual);
         }
+    }
 
-        dexFile.seek(0);
+    /**
+     * Reads just the header of the input's dex files.  For a zip only the
+     * first HEADER_SIZE bytes of each classes*.dex entry are inflated.
+     *
+     * @return the headers keyed by dex name, in archive order
+     */
+    Map<String, DexData> openHeaders(String fileName) throws IOException {
+        Map<String, DexData> headers = new LinkedHashMap<String, DexData>();
 
-        return dexFile;
+        ZipFile zipFile;
+        try {
+            zipFile = new ZipFile(resolve(fileName));
+        } catch (FileNotFoundException fnfe) {
+            System.err.println("Unable to open '" + fileName + "': " +
+                    fnfe.getMessage());
+            throw fnfe;
+        } catch (ZipException ze) {
+            // not a zip; read the header of the file itself
+            byte[] header = new byte[DexData.HEADER_SIZE];
+            InputStream in = new FileInputStream(resolve(fileName));
+            try {
+                new DataInputStream(in).readFully(header);
+            } finally {
+                in.close();
+            }
+            headers.put(new File(fileName).getName(), loadHeader(header));
+            return headers;
+        }
+
+        try {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                if (!entry.getName().matches("classes.*\\.dex")) {
+                    continue;
+                }
+                byte[] header = new byte[DexData.HEADER_SIZE];
+                InputStream zis = zipFile.getInputStream(entry);
+                try {
+                    new DataInputStream(zis).readFully(header);
+                } finally {
+                    zis.close();
+                }
+                headers.put(entry.getName(), loadHeader(header));
+            }
+        } finally {
+            zipFile.close();
+        }
+
+        return headers;
+    }
+
+    private static DexData loadHeader(byte[] header) throws IOException {
+        DexData dexData = new DexData(ByteBuffer.wrap(header));
+        dexData.loadHeader();
+        return dexData;
     }
 
     private String[] parseArgs(String[] args) {
@@ -250,15 +1171,88 @@ public class Main {
 
             if (arg.equals("--") || !arg.startsWith("--")) {
                 break;
+            } else if (arg.equals("--daemon") || arg.startsWith("--daemon=")) {
+                daemonPort = port(arg);
+            } else if (arg.equals("--connect") || arg.startsWith("--connect=")) {
+                connectPort = port(arg);
             } else if (arg.equals("--diff")) {
                 diffMode = true;
+            } else if (arg.equals("--summary")) {
+                summaryMode = true;
+            } else if (arg.equals("--watch")) {
+                watchMode = true;
+            } else if (arg.equals("--stats")) {
+                printStats = true;
+            } else if (arg.equals("--profile")) {
+                profile = new Profile(Profile.Format.TABLE);
+            } else if (arg.startsWith("--profile=")) {
+                profile = new Profile(Enum.valueOf(
+                        Profile.Format.class,
+                        arg.substring(arg.indexOf('=') + 1).toUpperCase()));
             } else if (arg.equals("--include-classes")) {
                 includeClasses = true;
+            } else if (arg.equals("--class-data")) {
+                classData = true;
+            } else if (arg.equals("--parallel-names")) {
+                parallelNames = true;
+            } else if (arg.equals("--temp-files")) {
+                useTempFiles = true;
             } else if (arg.startsWith("--package-filter=")) {
                 packageFilter = arg.substring(arg.indexOf('=') + 1);
             } else if (arg.startsWith("--max-depth=")) {
                 maxDepth =
                         Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+            } else if (arg.startsWith("--threads=")) {
+                threads =
+                        Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                if (threads < 1) {
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--jobs=")) {
+                jobs =
+                        Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                if (jobs < 1) {
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--max-dexes=")) {
+                maxDexes =
+                        Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                if (maxDexes < 1) {
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--diff-level=")) {
+                diffLevel = Enum.valueOf(
+                        DexDiff.Level.class,
+                        arg.substring(arg.indexOf('=') + 1).toUpperCase());
+                if (diffLevel == DexDiff.Level.CLASS) {
+                    includeClasses = true;
+                }
+            } else if (arg.startsWith("--diff-tolerance=")) {
+                diffTolerance =
+                        Integer.parseInt(arg.substring(arg.indexOf('=') + 1));
+                if (diffTolerance < 0) {
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--batch=")) {
+                batchManifest = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--save-snapshot=")) {
+                saveSnapshot = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--against-snapshot=")) {
+                againstSnapshot = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--cache-dir=")) {
+                cacheDir = arg.substring(arg.indexOf('=') + 1);
+            } else if (arg.startsWith("--heap-budget=")) {
+                heapBudget =
+                        Long.parseLong(arg.substring(arg.indexOf('=') + 1)) << 20;
+                if (heapBudget <= 0) {
+                    throw new UsageException();
+                }
+            } else if (arg.startsWith("--cache-size=")) {
+                cacheSize =
+                        Long.parseLong(arg.substring(arg.indexOf('=') + 1)) << 20;
+                if (cacheSize <= 0) {
+                    throw new UsageException();
+                }
             } else if (arg.startsWith("--filter=")) {
                 filter = Enum.valueOf(
                         DexFieldMethodCounts.Filter.class,
@@ -273,9 +1267,31 @@ public class Main {
             }
         }
 
-        // We expect at least one more argument (file name).
+        // We expect at least one more argument (file name), unless we are
+        // to wait for them from clients.
         int fileCount = args.length - idx;
-        if (fileCount == 0) {
+        if (daemonPort != 0) {
+            if (fileCount != 0 || connectPort != 0) {
+                throw new UsageException();
+            }
+            return new String[0];
+        }
+        if (fileCount == 0 && batchManifest == null) {
+            throw new UsageException();
+        }
+
+        if (batchManifest != null && (diffMode || summaryMode ||
+                saveSnapshot != null || againstSnapshot != null)) {
+            throw new UsageException();
+        }
+
+        if (diffMode && summaryMode) {
+            throw new UsageException();
+        }
+
+        // watching never finishes, so it can't be run in a daemon either
+        if (watchMode && (diffMode || summaryMode || batchManifest != null ||
+                saveSnapshot != null || againstSnapshot != null || connectPort != 0)) {
             throw new UsageException();
         }
 
@@ -283,22 +1299,74 @@ public class Main {
             throw new UsageException();
         }
 
+        // only the member fingerprints go through the names
+        if (parallelNames && (!diffMode || diffLevel != DexDiff.Level.MEMBER)) {
+            throw new UsageException();
+        }
+
+        // the trees only have room for the field and method columns
+        if (classData && outputStyle == DexFieldMethodCounts.OutputStyle.TREE) {
+            throw new UsageException();
+        }
+
+        // snapshots only hold package or class counts
+        if (againstSnapshot != null &&
+                (diffMode || summaryMode || diffLevel == DexDiff.Level.MEMBER)) {
+            throw new UsageException();
+        }
+
+        if (saveSnapshot != null && (diffMode || summaryMode || againstSnapshot != null)) {
+            throw new UsageException();
+        }
+
         String[] inputFileNames = new String[fileCount];
         System.arraycopy(args, idx, inputFileNames, 0, fileCount);
         return inputFileNames;
     }
 
+    private static int port(String arg) {
+        int eq = arg.indexOf('=');
+        if (eq < 0) {
+            return Daemon.DEFAULT_PORT;
+        }
+        int port = Integer.parseInt(arg.substring(eq + 1));
+        if (port < 1 || port > 65535) {
+            throw new UsageException();
+        }
+        return port;
+    }
+
     private void usage() {
         System.err.print(
                 "DEX per-package/class field/method counts v1.0\n" +
                         "Usage: dex-field-method-counts [options] <file.{dex,apk,jar,directory}> ...\n" +
                         "Options:\n" +
                         "  --diff (need two <file.{dex,apk,jar}>)\n" +
+                        "  --diff-level=PACKAGE|CLASS|MEMBER\n" +
+                        "  --diff-tolerance=N (default 2)\n" +
+                        "  --parallel-names (MEMBER diff: decode names across --threads)\n" +
+                        "  --summary (header id counts only)\n" +
                         "  --include-classes\n" +
+                        "  --temp-files\n" +
                         "  --package-filter=com.foo.bar\n" +
                         "  --max-depth=N\n" +
                         "  --filter=ALL|DEFINED_ONLY|REFERENCED_ONLY\n" +
-                        "  --output_style=FLAT|TREE\n"
+                        "  --class-data (also count members declared per class; FLAT only)\n" +
+                        "  --output_style=FLAT|TREE\n" +
+                        "  --threads=N\n" +
+                        "  --jobs=N\n" +
+                        "  --max-dexes=N\n" +
+                        "  --batch=manifest.txt (JSON Lines output)\n" +
+                        "  --save-snapshot=file\n" +
+                        "  --against-snapshot=file\n" +
+                        "  --cache-dir=DIR\n" +
+                        "  --cache-size=MB (default 256)\n" +
+                        "  --heap-budget=MB (low-memory mode)\n" +
+                        "  --watch (recount changed dexes until killed)\n" +
+                        "  --stats\n" +
+                        "  --profile[=TABLE|JSON] (per-phase times, to stderr)\n" +
+                        "  --daemon[=PORT] (serve requests from --connect)\n" +
+                        "  --connect[=PORT] (run in a daemon if there is one)\n"
         );
     }
 
@@ -309,13 +1377,16 @@ public class Main {
      *
      * @return a List of file names to process
      */
-    private List<String> collectFileNames(String[] inputFileNames) {
+    List<String> collectFileNames(String[] inputFileNames) {
         List<String> fileNames = new ArrayList<String>();
         for (String inputFileName : inputFileNames) {
-            File file = new File(inputFileName);
+            File file = resolve(inputFileName);
             if (file.isDirectory()) {
                 String dirPath = file.getAbsolutePath();
-                for (String fileInDir : file.list()) {
+                String[] filesInDir = file.list();
+                // the same order on every machine, whatever the filesystem's
+                Arrays.sort(filesInDir);
+                for (String fileInDir : filesInDir) {
                     fileNames.add(dirPath + File.separator + fileInDir);
                 }
             } else {
@@ -327,7 +1398,7 @@ public class Main {
 
     private List<String> collectFileNames(String inputFileName) {
         List<String> fileNames = new ArrayList<String>();
-        File file = new File(inputFileName);
+        File file = resolve(inputFileName);
         if (file.isDirectory()) {
             throw new UsageException();
         } else {
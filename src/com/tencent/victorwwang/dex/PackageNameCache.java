@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.Output;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caches the conversion of class descriptors to the package (or class)
+ * name we count under.
+ *
+ * The same few thousand descriptors show up in every classes*.dex of an
+ * APK and in every APK of a batch, so one cache per naming mode is shared
+ * by the whole run.  The cache is bounded: when it fills up it is simply
+ * cleared and refilled with whatever is hot.
+ */
+final class PackageNameCache {
+    static final int DEFAULT_CAPACITY = 1 << 16;
+
+    private static final PackageNameCache PACKAGES =
+            new PackageNameCache(false, DEFAULT_CAPACITY);
+    private static final PackageNameCache CLASSES =
+            new PackageNameCache(true, DEFAULT_CAPACITY);
+
+    private final boolean includeClasses;
+    private final int capacity;
+    private final ConcurrentHashMap<String, String> names;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    PackageNameCache(boolean includeClasses, int capacity) {
+        this.includeClasses = includeClasses;
+        this.capacity = capacity;
+        this.names = new ConcurrentHashMap<String, String>();
+    }
+
+    /**
+     * Returns the shared cache for the given naming mode.
+     */
+    static PackageNameCache get(boolean includeClasses) {
+        return includeClasses ? CLASSES : PACKAGES;
+    }
+
+    /**
+     * Returns the dotted package name of the descriptor, or with
+     * includeClasses the dotted class name with '$' turned into '.'.
+     */
+    String packageName(String classDescriptor) {
+        String name = names.get(classDescriptor);
+        if (name != null) {
+            hits.incrementAndGet();
+            return name;
+        }
+
+        misses.incrementAndGet();
+        name = includeClasses ?
+                Output.descriptorToDot(classDescriptor).replace('$', '.') :
+                Output.packageNameOnly(classDescriptor);
+        if (names.size() >= capacity) {
+            names.clear();
+        }
+        String raced = names.putIfAbsent(classDescriptor, name);
+        return raced != null ? raced : name;
+    }
+
+    long hits() {
+        return hits.get();
+    }
+
+    long misses() {
+        return misses.get();
+    }
+
+    int size() {
+        return names.size();
+    }
+
+    /**
+     * Describes the cache's effectiveness, for --stats.
+     */
+    String stats() {
+        long h = hits(), m = misses();
+        long total = h + m;
+        return String.format("%s name cache: %d hits, %d misses (%.1f%% hit rate), %d entries",
+                includeClasses ? "class" : "package", h, m,
+                total == 0 ? 0.0 : h * 100.0 / total, size());
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Field and method counts per package, kept as a trie of dot-separated
+ * name segments.
+ *
+ * Nodes are int ids into parallel arrays, and the children of all nodes
+ * share one open-addressing table keyed by (parent, segment).  Segments
+ * are matched against the package name's characters in place, so adding
+ * a package never splits or copies it.  A node's counts are the members
+ * counted under exactly that name; subtree totals and sorted orders are
+ * only worked out when printing.
+ *
+ * A parent is always created before its children, so ids increase from
+ * the root down every path.
+ */
+final class PackageTrie {
+    static final int ROOT = 0;
+
+    private String[] labels;            // segment; "" for the default package
+    private int[] parents;
+    private int[] hashes;               // hash of the segment
+    private int[] fieldCounts;
+    private int[] methodCounts;
+    private int size;
+
+    private int[] table;                // node id + 1, or 0 for empty
+    private int mask;
+
+    PackageTrie() {
+        labels = new String[64];
+        parents = new int[64];
+        hashes = new int[64];
+        fieldCounts = new int[64];
+        methodCounts = new int[64];
+        table = new int[128];
+        mask = table.length - 1;
+
+        labels[ROOT] = "";
+        parents[ROOT] = -1;
+        size = 1;
+    }
+
+    /**
+     * Adds counts under a dotted package (or class) name.
+     */
+    void add(String packageName, int fields, int methods) {
+        int node = ROOT;
+        int start = 0;
+        int len = packageName.length();
+        while (true) {
+            int end = start;
+            int hash = 0;
+            char ch;
+            while (end < len && (ch = packageName.charAt(end)) != '.') {
+                hash = 31 * hash + ch;
+                end++;
+            }
+            node = child(node, packageName, start, end, hash);
+            if (end >= len) {
+                break;
+            }
+            start = end + 1;
+        }
+        fieldCounts[node] += fields;
+        methodCounts[node] += methods;
+    }
+
+    /**
+     * Adds all of another trie's counts into this one.
+     */
+    void merge(PackageTrie other) {
+        merge(other, 1);
+    }
+
+    /**
+     * Takes all of another trie's counts, added earlier, out of this one.
+     * Names left without counts keep their nodes but are neither visited
+     * nor printed.
+     */
+    void unmerge(PackageTrie other) {
+        merge(other, -1);
+    }
+
+    private void merge(PackageTrie other, int sign) {
+        int[] mapped = new int[other.size];
+        mapped[ROOT] = ROOT;
+        for (int i = 1; i < other.size; i++) {
+            String label = other.labels[i];
+            mapped[i] = child(mapped[other.parents[i]], label, 0, label.length(),
+                    other.hashes[i]);
+        }
+        for (int i = 0; i < other.size; i++) {
+            fieldCounts[mapped[i]] += sign * other.fieldCounts[i];
+            methodCounts[mapped[i]] += sign * other.methodCounts[i];
+        }
+    }
+
+    /**
+     * Visits every name that has counts of its own, in sorted order.
+     */
+    void forEachPackage(Visitor visitor) {
+        Integer[] nodes = new Integer[size];
+        String[] names = new String[size];
+        int count = 0;
+        for (int i = 1; i < size; i++) {
+            if (fieldCounts[i] != 0 || methodCounts[i] != 0) {
+                names[i] = fullName(i);
+                nodes[count++] = i;
+            }
+        }
+        final String[] sortNames = names;
+        Arrays.sort(nodes, 0, count, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return sortNames[a].compareTo(sortNames[b]);
+            }
+        });
+        for (int i = 0; i < count; i++) {
+            int node = nodes[i];
+            visitor.visit(names[node], fieldCounts[node], methodCounts[node]);
+        }
+    }
+
+    interface Visitor {
+        void visit(String packageName, int fields, int methods);
+    }
+
+    /**
+     * Prints the field or method totals as an indented tree, down to
+     * maxDepth segments.  Subtrees without any members are left out.
+     */
+    void printTree(PrintStream out, boolean fields, int maxDepth) {
+        int[] own = fields ? fieldCounts : methodCounts;
+        int[] totals = Arrays.copyOf(own, size);
+        for (int i = size - 1; i > ROOT; i--) {
+            totals[parents[i]] += totals[i];
+        }
+
+        // children of node n are childIds[childStart[n] .. childStart[n+1])
+        int[] childStart = new int[size + 1];
+        for (int i = 1; i < size; i++) {
+            childStart[parents[i] + 1]++;
+        }
+        for (int i = 0; i < size; i++) {
+            childStart[i + 1] += childStart[i];
+        }
+        Integer[] childIds = new Integer[size];
+        int[] fill = Arrays.copyOf(childStart, size);
+        for (int i = 1; i < size; i++) {
+            childIds[fill[parents[i]]++] = i;
+        }
+        Comparator<Integer> byLabel = new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return displayLabel(a).compareTo(displayLabel(b));
+            }
+        };
+        for (int i = 0; i < size; i++) {
+            Arrays.sort(childIds, childStart[i], childStart[i + 1], byLabel);
+        }
+
+        out.println("<root>: " + totals[ROOT]);
+        printChildren(out, ROOT, "    ", 1, maxDepth, totals, childStart, childIds);
+    }
+
+    private void printChildren(PrintStream out, int node, String indent, int depth,
+            int maxDepth, int[] totals, int[] childStart, Integer[] childIds) {
+        if (depth > maxDepth) {
+            return;
+        }
+        for (int i = childStart[node]; i < childStart[node + 1]; i++) {
+            int child = childIds[i];
+            if (totals[child] == 0) {
+                continue;
+            }
+            out.println(indent + displayLabel(child) + ": " + totals[child]);
+            printChildren(out, child, indent + "    ", depth + 1, maxDepth,
+                    totals, childStart, childIds);
+        }
+    }
+
+    private String displayLabel(int node) {
+        // Members of classes in the default package.  Typical examples are
+        // methods that operate on arrays of primitive data types.
+        return labels[node].length() == 0 ? "<default>" : labels[node];
+    }
+
+    private String fullName(int node) {
+        if (parents[node] == ROOT) {
+            return labels[node];
+        }
+        StringBuilder builder = new StringBuilder();
+        appendName(builder, node);
+        return builder.toString();
+    }
+
+    private void appendName(StringBuilder builder, int node) {
+        if (parents[node] != ROOT) {
+            appendName(builder, parents[node]);
+            builder.append('.');
+        }
+        builder.append(labels[node]);
+    }
+
+    /**
+     * Finds or creates the child of parent whose segment is
+     * name[start, end).
+     */
+    private int child(int parent, String name, int start, int end, int hash) {
+        int segmentLength = end - start;
+        int slot = slot(parent, hash);
+        int entry;
+        while ((entry = table[slot]) != 0) {
+            int node = entry - 1;
+            if (parents[node] == parent && hashes[node] == hash &&
+                    labels[node].length() == segmentLength &&
+                    name.regionMatches(start, labels[node], 0, segmentLength)) {
+                return node;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        if (size == labels.length) {
+            int capacity = size * 2;
+            labels = Arrays.copyOf(labels, capacity);
+            parents = Arrays.copyOf(parents, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+            fieldCounts = Arrays.copyOf(fieldCounts, capacity);
+            methodCounts = Arrays.copyOf(methodCounts, capacity);
+        }
+        int node = size++;
+        labels[node] = start == 0 && end == name.length() ? name : name.substring(start, end);
+        parents[node] = parent;
+        hashes[node] = hash;
+
+        if (size * 2 > table.length) {
+            rehash();
+        } else {
+            table[slot] = node + 1;
+        }
+        return node;
+    }
+
+    private int slot(int parent, int hash) {
+        int h = parent * 0x9e3779b9 + hash;
+        h ^= h >>> 16;
+        return h & mask;
+    }
+
+    private void rehash() {
+        table = new int[table.length * 2];
+        mask = table.length - 1;
+        for (int node = 1; node < size; node++) {
+            int slot = slot(parents[node], hashes[node]);
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = node + 1;
+        }
+    }
+}
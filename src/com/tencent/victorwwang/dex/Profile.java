@@ -0,0 +1,292 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.DexData;
+
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * What --profile collects: wall time, CPU time and bytes allocated by
+ * each phase, for every input and each of its dexes.  CPU time and
+ * allocations are those of the thread that ran the phase, so phases run
+ * concurrently under --threads or --jobs are each measured on their own.
+ *
+ * Nothing here is touched unless --profile is given.
+ */
+final class Profile {
+    enum Format {
+        TABLE, JSON
+    }
+
+    /* phases outside DexData.load() */
+    static final String OPEN = "open";
+    static final String CACHE = "cache";
+    static final String COUNT = "count";
+    static final String AGGREGATE = "aggregate";
+    static final String OUTPUT = "output";
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final com.sun.management.ThreadMXBean ALLOCATIONS =
+            THREADS instanceof com.sun.management.ThreadMXBean &&
+                    ((com.sun.management.ThreadMXBean) THREADS).isThreadAllocatedMemorySupported() ?
+                    (com.sun.management.ThreadMXBean) THREADS : null;
+
+    private final Format format;
+    private final Map<String, Record> inputs = new LinkedHashMap<String, Record>();
+
+    Profile(Format format) {
+        this.format = format;
+    }
+
+    /**
+     * Returns the record of an input, starting one on first use.
+     */
+    synchronized Record input(String fileName) {
+        Record input = inputs.get(fileName);
+        if (input == null) {
+            input = new Record(fileName);
+            inputs.put(fileName, input);
+        }
+        return input;
+    }
+
+    static Timer start() {
+        return new Timer();
+    }
+
+    /**
+     * A measurement begun on the current thread.
+     */
+    static final class Timer {
+        final long wall = System.nanoTime();
+        final long cpu = cpuTime();
+        final long allocated = allocatedBytes();
+    }
+
+    private static long cpuTime() {
+        return CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATIONS == null ? 0 :
+                ALLOCATIONS.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * The phases of an input or of one dex.  An input's dexes may be
+     * loaded concurrently, but each dex only by one thread.
+     */
+    static final class Record implements DexData.LoadListener {
+        final String name;
+        long bytes;
+        int fields;
+        int methods;
+        private long counting;                  // wall time counting the dexes, if timed
+        private final Map<String, long[]> phases = new LinkedHashMap<String, long[]>();
+        private final List<Record> dexes = new ArrayList<Record>();
+        private Timer loading;
+
+        Record(String name) {
+            this.name = name;
+        }
+
+        synchronized Record dex(String name) {
+            Record dex = new Record(name);
+            dexes.add(dex);
+            return dex;
+        }
+
+        /**
+         * Adds what the current thread spent since the timer started.
+         */
+        synchronized void add(String phase, Timer timer) {
+            long wall = System.nanoTime() - timer.wall;
+            long cpu = cpuTime() - timer.cpu;
+            long allocated = allocatedBytes() - timer.allocated;
+            long[] totals = phases.get(phase);
+            if (totals == null) {
+                totals = new long[3];
+                phases.put(phase, totals);
+            }
+            totals[0] += wall;
+            totals[1] += cpu;
+            totals[2] += allocated;
+        }
+
+        /**
+         * Records the wall time spent on the dexes since the timer
+         * started; they may have been counted concurrently.
+         */
+        synchronized void counted(Timer timer) {
+            counting += System.nanoTime() - timer.wall;
+        }
+
+        @Override
+        public void phaseStarted(DexData.Phase phase) {
+            loading = start();
+        }
+
+        @Override
+        public void phaseEnded(DexData.Phase phase) {
+            add(phase.name().toLowerCase(), loading);
+        }
+
+        /**
+         * Returns wall, CPU and allocation totals over this record and
+         * its dexes.  The dexes add the wall time they took together,
+         * when known, rather than the sum of their own.
+         */
+        synchronized long[] totals() {
+            long[] totals = new long[3];
+            for (long[] phase : phases.values()) {
+                for (int i = 0; i < 3; i++) {
+                    totals[i] += phase[i];
+                }
+            }
+            for (Record dex : dexes) {
+                long[] dexTotals = dex.totals();
+                for (int i = counting > 0 ? 1 : 0; i < 3; i++) {
+                    totals[i] += dexTotals[i];
+                }
+            }
+            totals[0] += counting;
+            return totals;
+        }
+
+        /**
+         * Fills in an input's size from its dexes.
+         */
+        synchronized void sumDexes() {
+            if (dexes.isEmpty()) {
+                return;
+            }
+            bytes = fields = methods = 0;
+            for (Record dex : dexes) {
+                bytes += dex.bytes;
+                fields += dex.fields;
+                methods += dex.methods;
+            }
+        }
+    }
+
+    /**
+     * Prints everything collected.
+     */
+    synchronized void print(PrintStream out) {
+        StringBuilder sb = new StringBuilder();
+        if (format == Format.JSON) {
+            sb.append("{\"inputs\":[");
+            boolean first = true;
+            for (Record input : inputs.values()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                json(sb, input, "input");
+            }
+            sb.append("]}\n");
+        } else {
+            sb.append(String.format("%-36s%11s%11s%12s\n",
+                    "profile", "wall ms", "cpu ms", "alloc KB"));
+            for (Record input : inputs.values()) {
+                table(sb, input, "");
+            }
+        }
+        out.print(sb);
+        out.flush();
+    }
+
+    private static void table(StringBuilder sb, Record record, String indent) {
+        record.sumDexes();
+        long[] totals = record.totals();
+        row(sb, indent + record.name, totals);
+        sb.append(String.format("  %d methods, %.1f MB, %.0f methods/s, %.1f MB/s\n",
+                record.methods, record.bytes / 1048576.0,
+                perSecond(record.methods, totals[0]),
+                perSecond(record.bytes / 1048576.0, totals[0])));
+        synchronized (record) {
+            for (Map.Entry<String, long[]> e : record.phases.entrySet()) {
+                row(sb, indent + "  " + e.getKey(), e.getValue());
+                sb.append('\n');
+            }
+            for (Record dex : record.dexes) {
+                table(sb, dex, indent + "  ");
+            }
+        }
+    }
+
+    private static void row(StringBuilder sb, String name, long[] totals) {
+        sb.append(String.format("%-36s%11.3f%11.3f%12d",
+                name, totals[0] / 1e6, totals[1] / 1e6, totals[2] >> 10));
+    }
+
+    private static void json(StringBuilder sb, Record record, String nameKey) {
+        record.sumDexes();
+        long[] totals = record.totals();
+        sb.append("{\"").append(nameKey).append("\":");
+        BatchWriter.appendString(sb, record.name);
+        sb.append(",\"bytes\":").append(record.bytes);
+        sb.append(",\"fields\":").append(record.fields);
+        sb.append(",\"methods\":").append(record.methods).append(',');
+        times(sb, totals);
+        sb.append(",\"methodsPerSec\":").append(Math.round(perSecond(record.methods, totals[0])));
+        sb.append(",\"mbPerSec\":").append(
+                Math.round(perSecond(record.bytes / 1048576.0, totals[0]) * 10) / 10.0);
+        sb.append(",\"phases\":{");
+        synchronized (record) {
+            boolean first = true;
+            for (Map.Entry<String, long[]> e : record.phases.entrySet()) {
+                if (!first) {
+                    sb.append(',');
+                }
+                first = false;
+                BatchWriter.appendString(sb, e.getKey());
+                sb.append(":{");
+                times(sb, e.getValue());
+                sb.append('}');
+            }
+            sb.append('}');
+            if (!record.dexes.isEmpty()) {
+                sb.append(",\"dexes\":[");
+                for (int i = 0; i < record.dexes.size(); i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    json(sb, record.dexes.get(i), "dex");
+                }
+                sb.append(']');
+            }
+        }
+        sb.append('}');
+    }
+
+    private static void times(StringBuilder sb, long[] totals) {
+        sb.append("\"wallMs\":").append(totals[0] / 1000 / 1000.0);
+        sb.append(",\"cpuMs\":").append(totals[1] / 1000 / 1000.0);
+        sb.append(",\"allocBytes\":").append(totals[2]);
+    }
+
+    private static double perSecond(double amount, long nanos) {
+        return nanos <= 0 ? 0 : amount * 1e9 / nanos;
+    }
+}
@@ -0,0 +1,214 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-dex counts kept on disk between runs, keyed by the SHA-1 signature
+ * from the DEX header and the counting options.
+ *
+ * The directory may be shared by several processes at once.  Entries are
+ * written to a temporary file and renamed into place, so a reader sees a
+ * whole entry or none; an entry that can't be read for any reason is a
+ * miss.  Reading an entry touches its modification time, and once the
+ * directory grows past its size limit the least recently used entries
+ * are deleted.
+ */
+final class ResultCache {
+    private static final int MAGIC = 0x44464d43;        // "DFMC"
+    private static final int VERSION = 2;
+    private static final String SUFFIX = ".counts";
+    private static final long STALE_TEMP_MILLIS = 60 * 60 * 1000;
+
+    private final File dir;
+    private final long maxBytes;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    // bytes in the directory as of the last scan, plus what we wrote since
+    private final AtomicLong size = new AtomicLong(-1);
+
+    /**
+     * @param maxBytes size the directory is trimmed back to
+     */
+    ResultCache(File dir, long maxBytes) throws IOException {
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new IOException("Unable to create cache directory '" + dir + "'");
+        }
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns the cache key for a dex and the options it was counted
+     * with, or null if the dex isn't signed and so can't be told apart
+     * from others.
+     */
+    static String key(byte[] signature, String options) {
+        boolean signed = false;
+        StringBuilder key = new StringBuilder(signature.length * 2 + 9);
+        for (byte b : signature) {
+            signed |= b != 0;
+            key.append(Character.forDigit((b >> 4) & 0xf, 16));
+            key.append(Character.forDigit(b & 0xf, 16));
+        }
+        if (!signed) {
+            return null;
+        }
+        key.append('-').append(String.format("%08x", options.hashCode()));
+        return key.toString();
+    }
+
+    /**
+     * Returns the cached counts, or null if there are none.
+     */
+    DexFieldMethodCounts get(String key, String options,
+            DexFieldMethodCounts.OutputStyle outputStyle, int maxDepth) {
+        File file = new File(dir, key + SUFFIX);
+        try {
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION ||
+                        !in.readUTF().equals(options)) {
+                    misses.incrementAndGet();
+                    return null;
+                }
+                DexFieldMethodCounts counts =
+                        DexFieldMethodCounts.readFrom(in, outputStyle, maxDepth);
+                file.setLastModified(System.currentTimeMillis());
+                hits.incrementAndGet();
+                return counts;
+            } finally {
+                in.close();
+            }
+        } catch (IOException ioe) {
+            // missing, evicted under us or truncated; count it again
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * Stores the counts of a dex.  Failing to write is not an error; the
+     * dex will just be counted again next time.
+     */
+    void put(String key, String options, DexFieldMethodCounts counts) {
+        File temp = null;
+        try {
+            temp = File.createTempFile(key, ".tmp", dir);
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(temp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(options);
+                counts.writeTo(out);
+            } finally {
+                out.close();
+            }
+
+            File file = new File(dir, key + SUFFIX);
+            try {
+                Files.move(temp.toPath(), file.toPath(),
+                        StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException amnse) {
+                Files.move(temp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            temp = null;
+
+            if (size.get() < 0 || size.addAndGet(file.length()) > maxBytes) {
+                evict();
+            }
+        } catch (IOException ioe) {
+            System.err.println("Unable to write cache entry " + key + ": " + ioe);
+        } finally {
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Deletes least recently used entries until the directory fits, and
+     * temporary files left behind by processes that died mid-write.
+     */
+    private synchronized void evict() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+
+        final long[] lastModified = new long[files.length];
+        Integer[] entries = new Integer[files.length];
+        int count = 0;
+        long total = 0;
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < files.length; i++) {
+            File file = files[i];
+            lastModified[i] = file.lastModified();
+            if (file.getName().endsWith(SUFFIX)) {
+                entries[count++] = i;
+                total += file.length();
+            } else if (file.getName().endsWith(".tmp") &&
+                    now - lastModified[i] > STALE_TEMP_MILLIS) {
+                file.delete();
+            }
+        }
+
+        if (total > maxBytes) {
+            Arrays.sort(entries, 0, count, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(lastModified[a], lastModified[b]);
+                }
+            });
+            // trim a little further so we don't rescan on every write
+            long target = maxBytes - maxBytes / 8;
+            for (int i = 0; i < count && total > target; i++) {
+                File file = files[entries[i]];
+                long length = file.length();
+                // another process may have got there first
+                if (file.delete() || !file.exists()) {
+                    total -= length;
+                }
+            }
+        }
+        size.set(total);
+    }
+
+    /**
+     * Describes the cache's effectiveness, for --stats.
+     */
+    String stats() {
+        long h = hits.get(), m = misses.get();
+        long total = h + m;
+        return String.format("result cache: %d hits, %d misses (%.1f%% hit rate)",
+                h, m, total == 0 ? 0.0 : h * 100.0 / total);
+    }
+}
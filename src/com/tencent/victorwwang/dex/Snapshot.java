@@ -0,0 +1,331 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Saved per-package (or per-class) counts, to diff against later without
+ * the original input.
+ *
+ * The file is read through a memory mapping and decoded only as it is
+ * walked, so a snapshot can stand in for one side of a diff at little
+ * more than the cost of reading it once.
+ *
+ * Layout, fixed-size fields big-endian:
+ * <pre>
+ *   magic "DFMS", u2 version, u2 flags
+ *   u4 overall field count, u4 overall method count
+ *   u4 entry count, u4 restart count, u4 offset of the restart table
+ *   entries, sorted by name:
+ *       uleb128 bytes shared with the previous name,
+ *       uleb128 length of the rest, the rest in UTF-8,
+ *       uleb128 fields, uleb128 methods
+ *   restart table: u4 offset of every RESTART_INTERVAL'th entry
+ * </pre>
+ * Names are front-coded against the previous entry; every
+ * RESTART_INTERVAL'th entry is stored whole, so lookups can binary-search
+ * the restart table and decode only a few entries.
+ */
+final class Snapshot extends AbstractMap<String, DexFieldMethodCounts.IntPair> {
+    private static final int MAGIC = 0x44464d53;        // "DFMS"
+    private static final int VERSION = 1;
+    private static final int FLAG_INCLUDE_CLASSES = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int RESTART_INTERVAL = 16;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final ByteBuffer buffer;
+    private final boolean includeClasses;
+    private final int overallFieldCount;
+    private final int overallMethodCount;
+    private final int size;
+    private final int restartCount;
+    private final int restartsOffset;
+
+    private Snapshot(ByteBuffer buffer) throws IOException {
+        this.buffer = buffer;
+        if (buffer.limit() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IOException("not a snapshot file");
+        }
+        if (buffer.getShort(4) != VERSION) {
+            throw new IOException("unsupported snapshot version " + buffer.getShort(4));
+        }
+        includeClasses = (buffer.getShort(6) & FLAG_INCLUDE_CLASSES) != 0;
+        overallFieldCount = buffer.getInt(8);
+        overallMethodCount = buffer.getInt(12);
+        size = buffer.getInt(16);
+        restartCount = buffer.getInt(20);
+        restartsOffset = buffer.getInt(24);
+        if (size < 0 || restartCount != (size + RESTART_INTERVAL - 1) / RESTART_INTERVAL ||
+                restartsOffset < HEADER_SIZE ||
+                restartsOffset + 4L * restartCount > buffer.limit()) {
+            throw new IOException("corrupt snapshot header");
+        }
+    }
+
+    /**
+     * Maps a snapshot file.  The mapping stays valid after the file is
+     * closed.
+     */
+    static Snapshot open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            return new Snapshot(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException ioe) {
+            throw new IOException(file + ": " + ioe.getMessage(), ioe);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Writes counts sorted by name, e.g. DexFieldMethodCounts.packageCount.
+     */
+    static void write(File file, Map<String, DexFieldMethodCounts.IntPair> packageCount,
+            int overallFieldCount, int overallMethodCount, boolean includeClasses)
+            throws IOException {
+        ByteArrayOutputStream entries = new ByteArrayOutputStream();
+        int[] restarts = new int[(packageCount.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        byte[] previous = new byte[0];
+        int count = 0;
+        for (Map.Entry<String, DexFieldMethodCounts.IntPair> e : packageCount.entrySet()) {
+            byte[] name = e.getKey().getBytes(UTF_8);
+            int shared = 0;
+            if (count % RESTART_INTERVAL == 0) {
+                restarts[count / RESTART_INTERVAL] = HEADER_SIZE + entries.size();
+            } else {
+                int max = Math.min(previous.length, name.length);
+                while (shared < max && previous[shared] == name[shared]) {
+                    shared++;
+                }
+            }
+            writeUnsignedLeb128(entries, shared);
+            writeUnsignedLeb128(entries, name.length - shared);
+            entries.write(name, shared, name.length - shared);
+            writeUnsignedLeb128(entries, e.getValue().first);
+            writeUnsignedLeb128(entries, e.getValue().second);
+            previous = name;
+            count++;
+        }
+
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeShort(VERSION);
+            out.writeShort(includeClasses ? FLAG_INCLUDE_CLASSES : 0);
+            out.writeInt(overallFieldCount);
+            out.writeInt(overallMethodCount);
+            out.writeInt(count);
+            out.writeInt(restarts.length);
+            out.writeInt(HEADER_SIZE + entries.size());
+            entries.writeTo(out);
+            for (int restart : restarts) {
+                out.writeInt(restart);
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * True if the names are classes rather than packages.
+     */
+    boolean includesClasses() {
+        return includeClasses;
+    }
+
+    int getOverallFieldCount() {
+        return overallFieldCount;
+    }
+
+    int getOverallMethodCount() {
+        return overallMethodCount;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Looks a name up by binary search over the restart points.
+     */
+    @Override
+    public DexFieldMethodCounts.IntPair get(Object key) {
+        if (!(key instanceof String)) {
+            return null;
+        }
+        String name = (String) key;
+
+        // last restart whose name is <= key
+        int lo = 0, hi = restartCount - 1, block = -1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            Cursor cursor = new Cursor(buffer.getInt(restartsOffset + 4 * mid), mid * RESTART_INTERVAL);
+            cursor.next();
+            if (cursor.name.compareTo(name) <= 0) {
+                block = mid;
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        if (block < 0) {
+            return null;
+        }
+
+        Cursor cursor = new Cursor(buffer.getInt(restartsOffset + 4 * block),
+                block * RESTART_INTERVAL);
+        for (int i = 0; i < RESTART_INTERVAL && cursor.hasNext(); i++) {
+            cursor.next();
+            int cmp = cursor.name.compareTo(name);
+            if (cmp == 0) {
+                return new DexFieldMethodCounts.IntPair(cursor.fields, cursor.methods);
+            } else if (cmp > 0) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    /**
+     * The entries in name order, decoded as they are iterated.
+     */
+    @Override
+    public Set<Map.Entry<String, DexFieldMethodCounts.IntPair>> entrySet() {
+        return new AbstractSet<Map.Entry<String, DexFieldMethodCounts.IntPair>>() {
+            @Override
+            public Iterator<Map.Entry<String, DexFieldMethodCounts.IntPair>> iterator() {
+                final Cursor cursor = new Cursor(HEADER_SIZE, 0);
+                return new Iterator<Map.Entry<String, DexFieldMethodCounts.IntPair>>() {
+                    @Override
+                    public boolean hasNext() {
+                        return cursor.hasNext();
+                    }
+
+                    @Override
+                    public Map.Entry<String, DexFieldMethodCounts.IntPair> next() {
+                        if (!cursor.hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        cursor.next();
+                        return new SimpleImmutableEntry<String, DexFieldMethodCounts.IntPair>(
+                                cursor.name,
+                                new DexFieldMethodCounts.IntPair(cursor.fields, cursor.methods));
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Decodes entries one after another from a restart point.
+     */
+    private class Cursor {
+        private final ByteBuffer in;
+        private int index;
+        private byte[] nameBytes = new byte[64];
+        String name;
+        int fields;
+        int methods;
+
+        Cursor(int offset, int index) {
+            in = buffer.duplicate();
+            in.position(offset);
+            this.index = index;
+        }
+
+        boolean hasNext() {
+            return index < size;
+        }
+
+        void next() {
+            try {
+                int shared = readUnsignedLeb128();
+                int rest = readUnsignedLeb128();
+                if (shared + rest > nameBytes.length) {
+                    byte[] grown = new byte[Math.max(shared + rest, nameBytes.length * 2)];
+                    System.arraycopy(nameBytes, 0, grown, 0, shared);
+                    nameBytes = grown;
+                }
+                in.get(nameBytes, shared, rest);
+                name = new String(nameBytes, 0, shared + rest, UTF_8);
+                fields = readUnsignedLeb128();
+                methods = readUnsignedLeb128();
+                index++;
+            } catch (BufferUnderflowException bue) {
+                throw new IllegalStateException("truncated snapshot body", bue);
+            } catch (IndexOutOfBoundsException ioobe) {
+                throw new IllegalStateException("corrupt snapshot body", ioobe);
+            }
+        }
+
+        private int readUnsignedLeb128() {
+            int result = 0;
+            int shift = 0;
+            byte val;
+
+            do {
+                val = in.get();
+                result |= (val & 0x7f) << shift;
+                shift += 7;
+            } while (val < 0);
+
+            return result;
+        }
+    }
+
+    private static void writeUnsignedLeb128(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps per-input results for --heap-budget: on the heap while it is
+ * under budget, in a temporary file once it isn't.  Results waiting to
+ * be printed in input order under --jobs, and the two sides of a diff,
+ * are the only ones held for any length of time.
+ */
+final class SpillStore {
+    private final long budget;
+    private final DexFieldMethodCounts.OutputStyle outputStyle;
+    private final int maxDepth;
+    private final AtomicInteger spills = new AtomicInteger();
+
+    /**
+     * @param outputStyle how counts read back from a spill file print
+     * @param maxDepth how far down TREE output of those goes
+     */
+    SpillStore(long budget, DexFieldMethodCounts.OutputStyle outputStyle, int maxDepth) {
+        this.budget = budget;
+        this.outputStyle = outputStyle;
+        this.maxDepth = maxDepth;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+            }
+        }
+    }
+
+    /**
+     * Returns true if the heap in use is over budget.  Garbage not yet
+     * collected counts too, which errs towards spilling.
+     */
+    boolean overBudget() {
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory() > budget;
+    }
+
+    /**
+     * Holds counts, before calcPackageCount(), until take().
+     */
+    Held hold(DexFieldMethodCounts counts) throws IOException {
+        if (!overBudget()) {
+            return new Held(counts);
+        }
+
+        File file = File.createTempFile("dexcounts", ".spill");
+        try {
+            DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+            try {
+                counts.writeTo(out);
+            } finally {
+                out.close();
+            }
+        } catch (IOException ioe) {
+            file.delete();
+            throw ioe;
+        }
+        spills.incrementAndGet();
+        return new Held(file, outputStyle, maxDepth);
+    }
+
+    /**
+     * Returns the package counts as they are if under budget, otherwise
+     * as a snapshot in a temporary file, read in place.
+     */
+    Map<String, DexFieldMethodCounts.IntPair> hold(
+            Map<String, DexFieldMethodCounts.IntPair> packageCount, boolean includeClasses)
+            throws IOException {
+        if (!overBudget()) {
+            return packageCount;
+        }
+
+        File file = File.createTempFile("dexcounts", ".spill");
+        try {
+            Snapshot.write(file, packageCount, 0, 0, includeClasses);
+            return Snapshot.open(file);
+        } finally {
+            // the mapping outlives the file where the platform allows it
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+            spills.incrementAndGet();
+        }
+    }
+
+    /**
+     * Reports the peak heap use, summed over the heap pools, which may
+     * each have peaked at a different time.
+     */
+    String stats() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return String.format("peak heap used: %.1f MB of a %d MB budget, %d results spilled to disk",
+                peak / 1048576.0, budget >> 20, spills.get());
+    }
+
+    /**
+     * Counts kept by hold(), on the heap or in a file.
+     */
+    static final class Held {
+        private DexFieldMethodCounts counts;
+        private final File file;
+        private final DexFieldMethodCounts.OutputStyle outputStyle;
+        private final int maxDepth;
+
+        Held(DexFieldMethodCounts counts) {
+            this.counts = counts;
+            this.file = null;
+            this.outputStyle = null;
+            this.maxDepth = 0;
+        }
+
+        private Held(File file, DexFieldMethodCounts.OutputStyle outputStyle, int maxDepth) {
+            this.file = file;
+            this.outputStyle = outputStyle;
+            this.maxDepth = maxDepth;
+        }
+
+        /**
+         * Returns the counts, reading them back if spilled; only once.
+         */
+        DexFieldMethodCounts take() throws IOException {
+            if (file == null) {
+                DexFieldMethodCounts taken = counts;
+                counts = null;
+                return taken;
+            }
+
+            DataInputStream in = new DataInputStream(
+                    new BufferedInputStream(new FileInputStream(file), 1 << 16));
+            try {
+                return DexFieldMethodCounts.readFrom(in, outputStyle, maxDepth);
+            } finally {
+                in.close();
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.ZipEntry;
+
+/**
+ * Maps STORED (uncompressed) entries of a zip archive straight out of the
+ * archive file, so their bytes are never copied.
+ *
+ * ZipEntry does not tell us where an entry's data starts, so we read the
+ * local header offsets out of the central directory ourselves.  Anything
+ * unusual (zip64, a bad signature) makes map() return null and the caller
+ * falls back to inflating through ZipFile.
+ */
+class StoredEntryMapper implements Closeable {
+    private static final int EOCD_SIGNATURE = 0x06054b50;
+    private static final int CENTRAL_SIGNATURE = 0x02014b50;
+    private static final int LOCAL_SIGNATURE = 0x04034b50;
+    private static final int EOCD_SIZE = 22;
+    private static final int CENTRAL_HEADER_SIZE = 46;
+    private static final int LOCAL_HEADER_SIZE = 30;
+    private static final int MAX_COMMENT_SIZE = 0xffff;
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private final RandomAccessFile mFile;
+    private Map<String, Long> mLocalHeaderOffsets;
+
+    StoredEntryMapper(String fileName) throws IOException {
+        mFile = new RandomAccessFile(fileName, "r");
+    }
+
+    /**
+     * Returns a read-only mapping of the entry's data, or null if the
+     * entry is compressed or can't be located.
+     */
+    ByteBuffer map(ZipEntry entry) throws IOException {
+        if (entry.getMethod() != ZipEntry.STORED || entry.getSize() < 0) {
+            return null;
+        }
+        if (mLocalHeaderOffsets == null) {
+            mLocalHeaderOffsets = readCentralDirectory();
+        }
+        Long localHeaderOffset = mLocalHeaderOffsets.get(entry.getName());
+        if (localHeaderOffset == null) {
+            return null;
+        }
+
+        ByteBuffer header = read(localHeaderOffset, LOCAL_HEADER_SIZE);
+        if (header == null || header.getInt(0) != LOCAL_SIGNATURE) {
+            return null;
+        }
+        long dataOffset = localHeaderOffset + LOCAL_HEADER_SIZE +
+                (header.getShort(26) & 0xffff) + (header.getShort(28) & 0xffff);
+        if (dataOffset + entry.getSize() > mFile.length()) {
+            return null;
+        }
+
+        return mFile.getChannel().map(
+                FileChannel.MapMode.READ_ONLY, dataOffset, entry.getSize());
+    }
+
+    /**
+     * Finds the end-of-central-directory record and collects the local
+     * header offset of every entry.
+     */
+    private Map<String, Long> readCentralDirectory() throws IOException {
+        Map<String, Long> offsets = new HashMap<String, Long>();
+
+        long fileLength = mFile.length();
+        int tailSize = (int) Math.min(fileLength, EOCD_SIZE + MAX_COMMENT_SIZE);
+        ByteBuffer tail = read(fileLength - tailSize, tailSize);
+        if (tail == null) {
+            return offsets;
+        }
+        int eocd = -1;
+        for (int i = tailSize - EOCD_SIZE; i >= 0; i--) {
+            if (tail.getInt(i) == EOCD_SIGNATURE) {
+                eocd = i;
+                break;
+            }
+        }
+        if (eocd < 0) {
+            return offsets;
+        }
+
+        int entryCount = tail.getShort(eocd + 10) & 0xffff;
+        long centralSize = tail.getInt(eocd + 12) & 0xffffffffL;
+        long centralOffset = tail.getInt(eocd + 16) & 0xffffffffL;
+        if (centralOffset + centralSize > fileLength) {
+            // zip64 or garbage; let ZipFile deal with it
+            return offsets;
+        }
+
+        ByteBuffer central = read(centralOffset, (int) centralSize);
+        int pos = 0;
+        for (int i = 0; i < entryCount; i++) {
+            if (pos + CENTRAL_HEADER_SIZE > central.limit() ||
+                    central.getInt(pos) != CENTRAL_SIGNATURE) {
+                break;
+            }
+            int nameLen = central.getShort(pos + 28) & 0xffff;
+            // a truncated or inconsistent directory; keep what we have
+            if (pos + CENTRAL_HEADER_SIZE + nameLen > central.limit()) {
+                break;
+            }
+            int extraLen = central.getShort(pos + 30) & 0xffff;
+            int commentLen = central.getShort(pos + 32) & 0xffff;
+            long localHeaderOffset = central.getInt(pos + 42) & 0xffffffffL;
+
+            byte[] name = new byte[nameLen];
+            central.position(pos + CENTRAL_HEADER_SIZE);
+            central.get(name);
+            offsets.put(new String(name, UTF_8), localHeaderOffset);
+
+            pos += CENTRAL_HEADER_SIZE + nameLen + extraLen + commentLen;
+        }
+
+        return offsets;
+    }
+
+    /**
+     * Reads a little-endian region of the file, or returns null if it
+     * runs past the end.
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        if (offset < 0 || offset + length > mFile.length()) {
+            return null;
+        }
+        byte[] buf = new byte[length];
+        mFile.seek(offset);
+        mFile.readFully(buf);
+        return ByteBuffer.wrap(buf).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public void close() throws IOException {
+        mFile.close();
+    }
+}
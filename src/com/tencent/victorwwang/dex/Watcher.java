@@ -0,0 +1,272 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.tencent.victorwwang.dex;
+
+import com.android.dexdeps.DexData;
+import com.android.dexdeps.DexDataException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Counts the inputs, then recounts them as they change until the process
+ * is killed.
+ *
+ * Each dex's counts are kept apart from the input's totals, along with
+ * the signature from its header.  When an input changes only the headers
+ * are read again; a dex whose signature is new is counted and its counts
+ * swapped for the old ones in the totals, and the rest aren't touched.
+ */
+final class Watcher {
+    /** How long the inputs must go unchanged before they are recounted. */
+    private static final long QUIET_MILLIS = 50;
+
+    private final Main main;
+    private final DexFieldMethodCounts.OutputStyle outputStyle;
+    private final int maxDepth;
+    // by file name, as collectFileNames() gives them
+    private final Map<String, Input> inputs = new LinkedHashMap<String, Input>();
+    private int recounted;
+
+    /**
+     * @param outputStyle how the totals print
+     * @param maxDepth how far down TREE output goes
+     */
+    Watcher(Main main, DexFieldMethodCounts.OutputStyle outputStyle, int maxDepth) {
+        this.main = main;
+        this.outputStyle = outputStyle;
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * An input's totals and the dexes that make them up.
+     */
+    private final class Input {
+        final DexFieldMethodCounts counts = new DexFieldMethodCounts(outputStyle, maxDepth);
+        // by name within the input, in archive order
+        Map<String, Dex> dexes = new LinkedHashMap<String, Dex>();
+    }
+
+    private static final class Dex {
+        final byte[] signature;
+        final DexFieldMethodCounts counts;
+
+        Dex(byte[] signature, DexFieldMethodCounts counts) {
+            this.signature = signature;
+            this.counts = counts;
+        }
+    }
+
+    /**
+     * Prints the counts of every input and the totals over all of them,
+     * then again for the inputs that change.  Inputs that are files are
+     * watched through the directory they are in; those that are
+     * directories for files being added and removed as well.
+     */
+    void watch(String[] inputFileNames) throws IOException {
+        WatchService watchService = FileSystems.getDefault().newWatchService();
+        try {
+            Set<Path> dirs = new HashSet<Path>();
+            for (String inputFileName : inputFileNames) {
+                File file = main.resolve(inputFileName).getAbsoluteFile();
+                Path dir = (file.isDirectory() ? file : file.getParentFile()).toPath();
+                if (dirs.add(dir)) {
+                    dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE,
+                            StandardWatchEventKinds.ENTRY_MODIFY,
+                            StandardWatchEventKinds.ENTRY_DELETE);
+                }
+            }
+
+            update(inputFileNames, null);
+            while (true) {
+                Set<Path> changed = new HashSet<Path>();
+                WatchKey key = watchService.take();
+                // a build writes its outputs in bursts; wait for it to finish
+                do {
+                    if (!poll(key, changed)) {
+                        changed = null;
+                    }
+                    key.reset();
+                } while ((key = watchService.poll(QUIET_MILLIS, TimeUnit.MILLISECONDS)) != null);
+                update(inputFileNames, changed);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } finally {
+            watchService.close();
+        }
+    }
+
+    /**
+     * Adds the files the key's events are about to changed.
+     *
+     * @return false if events were lost, so that anything may have changed
+     */
+    private static boolean poll(WatchKey key, Set<Path> changed) {
+        Path dir = (Path) key.watchable();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                return false;
+            }
+            if (changed != null) {
+                changed.add(dir.resolve((Path) event.context()));
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Recounts the inputs whose files are among changed, or all of them
+     * if changed is null, and prints those that came out different,
+     * followed by the new totals.  An input that can't be read keeps its
+     * old counts until it changes again.
+     */
+    private void update(String[] inputFileNames, Set<Path> changed) throws IOException {
+        long start = System.nanoTime();
+        List<String> fileNames = main.collectFileNames(inputFileNames);
+        List<String> updated = new ArrayList<String>();
+        recounted = 0;
+
+        for (String fileName : fileNames) {
+            if (changed != null && inputs.containsKey(fileName) &&
+                    !changed.contains(main.resolve(fileName).getAbsoluteFile().toPath())) {
+                continue;
+            }
+            try {
+                if (recount(fileName) || changed == null) {
+                    updated.add(fileName);
+                }
+            } catch (IOException ioe) {
+                System.err.println("Failed: " + ioe);
+            } catch (DexDataException dde) {
+                // the details went to stderr; likely still being written
+            }
+        }
+        for (Iterator<String> it = inputs.keySet().iterator(); it.hasNext(); ) {
+            String fileName = it.next();
+            if (!fileNames.contains(fileName)) {
+                it.remove();
+                updated.add(fileName);
+            }
+        }
+        // a dex seen again later is counted again rather than kept for it
+        main.forgetDexes();
+
+        if (updated.isEmpty() && changed != null) {
+            return;
+        }
+        int overallFieldCount = 0;
+        int overallMethodCount = 0;
+        for (String fileName : fileNames) {
+            Input input = inputs.get(fileName);
+            if (input == null) {
+                continue;
+            }
+            if (updated.contains(fileName)) {
+                System.out.println("Processing " + fileName);
+                main.render(fileName, input.counts);
+            }
+            overallFieldCount += input.counts.getOverallFieldCount();
+            overallMethodCount += input.counts.getOverallMethodCount();
+        }
+        for (String fileName : updated) {
+            if (!inputs.containsKey(fileName)) {
+                System.out.println("Removed " + fileName);
+            }
+        }
+        System.out.println("Overall field count: " + overallFieldCount);
+        System.out.println("Overall method count: " + overallMethodCount);
+        System.out.flush();
+        System.err.printf("Recounted %d dexes in %.1f ms\n",
+                recounted, (System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * Brings an input's counts up to date with its dexes' headers.
+     *
+     * @return false if no dex was counted, added or removed
+     */
+    private boolean recount(String fileName) throws IOException {
+        Map<String, DexData> headers = main.openHeaders(fileName);
+        Input input = inputs.get(fileName);
+        Map<String, Dex> old = input == null ? new LinkedHashMap<String, Dex>() : input.dexes;
+        Map<String, Dex> dexes = new LinkedHashMap<String, Dex>();
+
+        // count what is new before touching the totals, in case it fails
+        int index = 0;
+        boolean swapped = false;
+        for (Map.Entry<String, DexData> e : headers.entrySet()) {
+            byte[] signature = e.getValue().getSignature();
+            Dex dex = old.get(e.getKey());
+            if (dex == null || !signed(signature) || !Arrays.equals(dex.signature, signature)) {
+                dex = new Dex(signature, main.countDex(fileName, index,
+                        main.openDexFile(fileName, e.getKey())));
+                recounted++;
+            }
+            dexes.put(e.getKey(), dex);
+            index++;
+        }
+
+        if (input == null) {
+            input = new Input();
+            input.counts.calcPackageCount();
+            inputs.put(fileName, input);
+        }
+        for (Map.Entry<String, Dex> e : old.entrySet()) {
+            if (dexes.get(e.getKey()) != e.getValue()) {
+                input.counts.remove(e.getValue().counts);
+                swapped = true;
+            }
+        }
+        for (Map.Entry<String, Dex> e : dexes.entrySet()) {
+            if (old.get(e.getKey()) != e.getValue()) {
+                input.counts.add(e.getValue().counts);
+                swapped = true;
+            }
+        }
+        input.dexes = dexes;
+        return swapped;
+    }
+
+    /**
+     * Returns false for a dex without a signature, which can't be told
+     * apart from its other versions and so is always counted again.
+     */
+    private static boolean signed(byte[] signature) {
+        for (byte b : signature) {
+            if (b != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+}